@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.command;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import wild.api.uuid.UUIDRegistry;
+
+/**
+ * Tab completion of an argument, declared with {@link CommandFramework.TabComplete} or {@link SubCommandFramework.SubCommandTabComplete}.
+ */
+public enum ArgumentCompleter {
+	
+	NONE,
+	
+	/**
+	 * Names of the online players.
+	 */
+	ONLINE_PLAYERS,
+	
+	/**
+	 * Names of the online players, followed by the names in the UUID registry (the most recently seen first).
+	 */
+	PLAYERS;
+	
+	
+	private static final int MAX_COMPLETIONS = 50;
+	
+	static List<String> complete(ArgumentCompleter[] completers, int argIndex, CommandSender sender, String prefix) {
+		if (completers == null || argIndex >= completers.length) {
+			return Collections.emptyList();
+		}
+		return completers[argIndex].complete(sender, prefix);
+	}
+	
+	List<String> complete(CommandSender sender, String prefix) {
+		if (this == NONE) {
+			return Collections.emptyList();
+		}
+		
+		List<String> completions = new ArrayList<>();
+		for (ProxiedPlayer player : ProxyServer.getInstance().getPlayers()) {
+			if (player.getName().regionMatches(true, 0, prefix, 0, prefix.length())) {
+				completions.add(player.getName());
+				if (completions.size() >= MAX_COMPLETIONS) {
+					return completions;
+				}
+			}
+		}
+		
+		// With an empty prefix the registry would return too many names
+		if (this == PLAYERS && !prefix.isEmpty()) {
+			Set<String> added = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+			added.addAll(completions);
+			
+			for (String name : UUIDRegistry.findNamesByPrefix(prefix, MAX_COMPLETIONS)) {
+				if (completions.size() >= MAX_COMPLETIONS) {
+					break;
+				}
+				if (added.add(name)) {
+					completions.add(name);
+				}
+			}
+		}
+		
+		return completions;
+	}
+	
+}
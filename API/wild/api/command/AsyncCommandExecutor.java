@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.command;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the asynchronous commands on a limited amount of threads, serving the senders in turn.
+ * Each sender has its own queue and only one of its commands runs at a time, so that a sender can't starve the others.
+ */
+class AsyncCommandExecutor {
+	
+	private static final int MAX_THREADS = 4;
+	private static final int MAX_PENDING_PER_SENDER = 3; // Including the running one
+	private static final int MAX_QUEUED = 500;
+	
+	private static final ThreadPoolExecutor THREAD_POOL;
+	
+	static {
+		THREAD_POOL = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("Async command #%d").setDaemon(true).build());
+		THREAD_POOL.allowCoreThreadTimeOut(true);
+	}
+	
+	// Guarded by the class lock
+	private static final Map<Object, SenderQueue> senderQueues = new HashMap<>();
+	private static final Queue<SenderQueue> readyQueues = new ArrayDeque<>(); // Senders with commands waiting and none running
+	private static int queuedCount;
+	private static int activeWorkers;
+	
+	
+	/**
+	 * Returns false if the command was rejected, because the sender or all the senders have too many pending commands.
+	 */
+	static synchronized boolean submit(CommandSender sender, Runnable command) {
+		Object key = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : sender.getName();
+		SenderQueue queue = senderQueues.get(key);
+		
+		if (queuedCount >= MAX_QUEUED || (queue != null && queue.getPendingCount() >= MAX_PENDING_PER_SENDER)) {
+			return false;
+		}
+		
+		if (queue == null) {
+			queue = new SenderQueue(key);
+			senderQueues.put(key, queue);
+		}
+		
+		queue.commands.add(command);
+		queuedCount++;
+		if (!queue.running && queue.commands.size() == 1) {
+			readyQueues.add(queue);
+		}
+		
+		if (activeWorkers < MAX_THREADS) {
+			activeWorkers++;
+			THREAD_POOL.execute(AsyncCommandExecutor::work);
+		}
+		return true;
+	}
+	
+	private static void work() {
+		SenderQueue queue;
+		while ((queue = takeReadyQueue()) != null) {
+			try {
+				queue.current.run();
+			} catch (Throwable t) {
+				ProxyServer.getInstance().getLogger().log(Level.SEVERE, "Uncaught exception in async command", t);
+			}
+			release(queue);
+		}
+	}
+	
+	private static synchronized SenderQueue takeReadyQueue() {
+		SenderQueue queue = readyQueues.poll();
+		if (queue == null) {
+			activeWorkers--;
+			return null;
+		}
+		
+		queue.current = queue.commands.poll();
+		queue.running = true;
+		queuedCount--;
+		return queue;
+	}
+	
+	private static synchronized void release(SenderQueue queue) {
+		queue.current = null;
+		queue.running = false;
+		
+		if (queue.commands.isEmpty()) {
+			senderQueues.remove(queue.key);
+		} else {
+			readyQueues.add(queue); // At the end, after the other senders
+		}
+	}
+	
+	
+	private static class SenderQueue {
+		
+		private final Object key;
+		private final Queue<Runnable> commands = new ArrayDeque<>();
+		private Runnable current;
+		private boolean running;
+		
+		private SenderQueue(Object key) {
+			this.key = key;
+		}
+		
+		private int getPendingCount() {
+			return commands.size() + (running ? 1 : 0);
+		}
+		
+	}
+	
+}
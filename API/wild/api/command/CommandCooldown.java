@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.command;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+/**
+ * Per-player cooldown of a command, without locks. Expired entries are removed periodically
+ * while the command is used, so the map only contains the players who used it recently.
+ * The console has no cooldown.
+ */
+class CommandCooldown {
+	
+	private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private final long duration;
+	private final String bypassPermission; // May be null
+	private final Map<UUID, Long> expirations = new ConcurrentHashMap<>();
+	private final AtomicLong nextSweep = new AtomicLong();
+	
+	CommandCooldown(long duration, String bypassPermission) {
+		this.duration = duration;
+		this.bypassPermission = bypassPermission != null && !bypassPermission.isEmpty() ? bypassPermission : null;
+	}
+	
+	/**
+	 * Starts the cooldown and returns 0 if the sender can use the command, otherwise returns the remaining milliseconds.
+	 */
+	long tryUse(CommandSender sender) {
+		if (!(sender instanceof ProxiedPlayer) || (bypassPermission != null && sender.hasPermission(bypassPermission))) {
+			return 0;
+		}
+		
+		UUID uuid = ((ProxiedPlayer) sender).getUniqueId();
+		long now = System.currentTimeMillis();
+		sweepExpired(now);
+		
+		while (true) {
+			Long expiration = expirations.get(uuid);
+			if (expiration != null && expiration > now) {
+				return expiration - now;
+			}
+			
+			// Only one of the concurrent uses succeeds
+			boolean started = expiration == null ? expirations.putIfAbsent(uuid, now + duration) == null : expirations.replace(uuid, expiration, now + duration);
+			if (started) {
+				return 0;
+			}
+		}
+	}
+	
+	/**
+	 * Gives back the use started by tryUse(), for example if the command was rejected or its arguments were invalid.
+	 */
+	void refund(CommandSender sender) {
+		if (sender instanceof ProxiedPlayer) {
+			expirations.remove(((ProxiedPlayer) sender).getUniqueId());
+		}
+	}
+	
+	private void sweepExpired(long now) {
+		long sweepTime = nextSweep.get();
+		if (now >= sweepTime && nextSweep.compareAndSet(sweepTime, now + SWEEP_INTERVAL)) {
+			expirations.values().removeIf(expiration -> expiration <= now);
+		}
+	}
+	
+}
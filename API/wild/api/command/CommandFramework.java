@@ -33,24 +33,29 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import lombok.Getter;
 import lombok.NonNull;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
-import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.plugin.TabExecutor;
 import wild.api.chat.Chat;
+import wild.api.util.UnitFormatter;
 
 /**
  * Wrapper for the default command executor.
  */
-public abstract class CommandFramework extends Command {
+public abstract class CommandFramework extends Command implements TabExecutor {
+	
+	private static volatile BaseComponent[] asyncBusyMessage = Chat.makeArray("Hai già dei comandi in esecuzione, attendi qualche secondo.", ChatColor.RED);
 	
 	@Getter private final Plugin plugin;
 	protected String originalLabel;
@@ -58,6 +63,8 @@ public abstract class CommandFramework extends Command {
 	protected BaseComponent[] noPermissionMessage;
 	private boolean asyncSQL;
 	private BaseComponent[] asyncSQLMessage;
+	private CommandCooldown cooldown;
+	private ArgumentCompleter[] argumentCompleters;
 	
 	public CommandFramework(@NonNull Plugin plugin, @NonNull String label, String... aliases) {
 		super(label, null, aliases);
@@ -81,6 +88,16 @@ public abstract class CommandFramework extends Command {
 			this.asyncSQL = true;
 			this.asyncSQLMessage = TextComponent.fromLegacyText(ChatColor.RED + asyncSQL.value());
 		}
+		
+		Cooldown cooldown = getClass().getAnnotation(Cooldown.class);
+		if (cooldown != null) {
+			this.cooldown = new CommandCooldown(TimeUnit.SECONDS.toMillis(cooldown.value()), cooldown.bypassPermission());
+		}
+		
+		TabComplete tabComplete = getClass().getAnnotation(TabComplete.class);
+		if (tabComplete != null) {
+			this.argumentCompleters = tabComplete.value();
+		}
 	}
 	
 	
@@ -93,9 +110,13 @@ public abstract class CommandFramework extends Command {
 			return;
 		}
 		
+		if (cooldown != null && !checkCooldown(sender, cooldown, "questo comando")) {
+			return;
+		}
+		
 		if (asyncSQL) {
 			
-			ProxyServer.getInstance().getScheduler().runAsync(getPlugin(), new Runnable() {
+			boolean accepted = runAsyncCommand(sender, new Runnable() {
 				
 				@Override
 				public void run() {
@@ -103,17 +124,65 @@ public abstract class CommandFramework extends Command {
 				}
 			});
 			
+			if (!accepted) {
+				refundCooldown(sender);
+			}
+			
 		} else {
 			tryOnCommand(sender, args);
 		}
 	}
 	
+	/**
+	 * Gives back the use of the command, when it didn't do anything.
+	 */
+	void refundCooldown(CommandSender sender) {
+		if (cooldown != null) {
+			cooldown.refund(sender);
+		}
+	}
+	
+	/**
+	 * Returns false and tells the remaining time if the sender must wait before using the command again.
+	 */
+	static boolean checkCooldown(CommandSender sender, CommandCooldown cooldown, String commandDescription) {
+		long remainingMillis = cooldown.tryUse(sender);
+		if (remainingMillis > 0) {
+			int remainingSeconds = (int) ((remainingMillis + 999) / 1000);
+			Chat.tell(sender, "Devi attendere " + UnitFormatter.formatMinutesOrSeconds(remainingSeconds) + " prima di usare di nuovo " + commandDescription + ".", ChatColor.RED);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the command on the shared executor of the asynchronous commands, which has a limited amount of threads
+	 * and serves the senders in turn. If the sender has too many pending commands, it's rejected with the busy message.
+	 * 
+	 * @return false if the command was rejected
+	 */
+	protected static boolean runAsyncCommand(CommandSender sender, Runnable command) {
+		if (!AsyncCommandExecutor.submit(sender, command)) {
+			sender.sendMessage(asyncBusyMessage);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets the message sent when an asynchronous command is rejected because the sender has too many pending commands.
+	 */
+	public static void setAsyncBusyMessage(@NonNull String message) {
+		asyncBusyMessage = TextComponent.fromLegacyText(ChatColor.RED + message);
+	}
+	
 	private void tryOnCommand(CommandSender sender, String[] args) {
 		try {
 			onCommand(sender, args);
 			
 		} catch (ExecuteException e) {
-			// Totally fine
+			// Totally fine, but the command didn't do anything
+			refundCooldown(sender);
 			if (e.getMessage() != null) {
 				sender.sendMessage(TextComponent.fromLegacyText(ChatColor.RED + e.getMessage()));
 			}
@@ -132,6 +201,18 @@ public abstract class CommandFramework extends Command {
 	}
 
 	public abstract void onCommand(CommandSender sender, String[] args);
+	
+	/**
+	 * Completes the arguments declared with {@link TabComplete}, can be overridden for custom completions.
+	 */
+	@Override
+	public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+		if (args.length == 0 || (permission != null && !sender.hasPermission(permission))) {
+			return Collections.emptyList();
+		}
+		
+		return ArgumentCompleter.complete(argumentCompleters, args.length - 1, sender, args[args.length - 1]);
+	}
 
 		
 	public static class ExecuteException extends RuntimeException {
@@ -168,6 +249,30 @@ public abstract class CommandFramework extends Command {
 		String value();
 		
 	}
+	
+	/**
+	 * Seconds that a player must wait before using the command again, unless they have the bypass permission.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public static @interface Cooldown {
+
+		int value();
+		
+		String bypassPermission() default "";
+		
+	}
+	
+	/**
+	 * How to complete each argument of the command, in order.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public static @interface TabComplete {
+
+		ArgumentCompleter[] value();
+		
+	}
 
 	
 	public static class CommandValidate {
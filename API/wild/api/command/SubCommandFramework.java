@@ -32,19 +32,23 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import lombok.NonNull;
 import lombok.Setter;
-import lombok.SneakyThrows;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.ProxyServer;
@@ -58,7 +62,10 @@ import com.google.common.collect.Maps;
 
 public abstract class SubCommandFramework extends CommandFramework {
 	
+	private static final MethodType SUB_COMMAND_TYPE = MethodType.methodType(void.class, CommandSender.class, String[].class);
+	
 	private Map<String, SubCommandPiece> subCommands;
+	private String[] sortedSubCommandNames; // For tab completion
 	@Setter @NonNull private ChatColor helpColor = ChatColor.GRAY;
 	@Setter @NonNull private BaseComponent[] helpHeader = Chat.makeArray("/" + getName() + ":", ChatColor.WHITE);
 
@@ -76,6 +83,8 @@ public abstract class SubCommandFramework extends CommandFramework {
 				int minArgs = method.getAnnotation(SubCommandMinArgs.class) != null ? method.getAnnotation(SubCommandMinArgs.class).value() : 0;
 				boolean subCommandAsyncSQL = method.getAnnotation(SubCommandAsyncSQL.class) != null;
 				String subCommandAsyncSQLMessage = method.getAnnotation(SubCommandAsyncSQL.class) != null ? method.getAnnotation(SubCommandAsyncSQL.class).value() : null;
+				SubCommandCooldown subCommandCooldown = method.getAnnotation(SubCommandCooldown.class);
+				SubCommandTabComplete subCommandTabComplete = method.getAnnotation(SubCommandTabComplete.class);
 				
 				try {
 					method.setAccessible(true);
@@ -85,7 +94,20 @@ public abstract class SubCommandFramework extends CommandFramework {
 						throw new IllegalArgumentException("I parametri del sottocomando devono essere 2, in ordine: CommandSender (sender), String[] (args)");
 					}
 					
-					SubCommandPiece piece = new SubCommandPiece(method, subCommandPermission, subCommandNoPermissionMessage, subCommandUsage, minArgs, subCommandAsyncSQL, subCommandAsyncSQLMessage);
+					// Bound to this instance once, invoking it doesn't need reflection or argument arrays (static methods have no receiver)
+					MethodHandle handle = MethodHandles.lookup().unreflect(method);
+					if (!Modifier.isStatic(method.getModifiers())) {
+						handle = handle.bindTo(this);
+					}
+					handle = handle.asType(SUB_COMMAND_TYPE);
+					
+					SubCommandPiece piece = new SubCommandPiece(handle, subCommandPermission, subCommandNoPermissionMessage, subCommandUsage, minArgs, subCommandAsyncSQL, subCommandAsyncSQLMessage);
+					if (subCommandCooldown != null) {
+						piece.cooldown = new CommandCooldown(TimeUnit.SECONDS.toMillis(subCommandCooldown.value()), subCommandCooldown.bypassPermission());
+					}
+					if (subCommandTabComplete != null) {
+						piece.argumentCompleters = subCommandTabComplete.value();
+					}
 					subCommands.put(subCommandName.toLowerCase(), piece);
 					
 				} catch (Exception e) {
@@ -93,6 +115,9 @@ public abstract class SubCommandFramework extends CommandFramework {
 				}
 			}
 		}
+		
+		sortedSubCommandNames = subCommands.keySet().toArray(new String[0]);
+		Arrays.sort(sortedSubCommandNames);
 	}
 	
 	@Override
@@ -117,8 +142,12 @@ public abstract class SubCommandFramework extends CommandFramework {
 				return;
 			}
 			
+			if (piece.cooldown != null && !checkCooldown(sender, piece.cooldown, "questo sotto-comando")) {
+				return;
+			}
+			
 			if (piece.asyncSQL) {
-				ProxyServer.getInstance().getScheduler().runAsync(getPlugin(), new Runnable() {
+				boolean accepted = runAsyncCommand(sender, new Runnable() {
 					
 					@Override
 					public void run() {
@@ -126,6 +155,10 @@ public abstract class SubCommandFramework extends CommandFramework {
 					}
 				});
 				
+				if (!accepted) {
+					refundCooldowns(piece, sender);
+				}
+				
 			} else {
 				tryInvoke(piece, sender, subArgs);
 			}
@@ -135,17 +168,53 @@ public abstract class SubCommandFramework extends CommandFramework {
 		}
 	}
 	
-	@SneakyThrows
+	/**
+	 * Completes the names of the sub-commands that the sender can use, then their arguments declared with {@link SubCommandTabComplete}.
+	 */
+	@Override
+	public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+		if (args.length == 0 || (permission != null && !sender.hasPermission(permission))) {
+			return Collections.emptyList();
+		}
+		
+		if (args.length == 1) {
+			return completeSubCommandName(sender, args[0].toLowerCase());
+		}
+		
+		SubCommandPiece piece = subCommands.get(args[0].toLowerCase());
+		if (piece == null || (piece.permission != null && !sender.hasPermission(piece.permission))) {
+			return Collections.emptyList();
+		}
+		return ArgumentCompleter.complete(piece.argumentCompleters, args.length - 2, sender, args[args.length - 1]);
+	}
+	
+	private List<String> completeSubCommandName(CommandSender sender, String prefix) {
+		List<String> completions = Lists.newArrayList();
+		
+		// The names starting with the prefix are contiguous in the sorted array, from its insertion point
+		int position = Arrays.binarySearch(sortedSubCommandNames, prefix);
+		if (position < 0) {
+			position = -position - 1;
+		}
+		
+		for (; position < sortedSubCommandNames.length && sortedSubCommandNames[position].startsWith(prefix); position++) {
+			SubCommandPiece piece = subCommands.get(sortedSubCommandNames[position]);
+			if (piece.permission == null || sender.hasPermission(piece.permission)) {
+				completions.add(sortedSubCommandNames[position]);
+			}
+		}
+		return completions;
+	}
+	
 	private void tryInvoke(SubCommandPiece piece, CommandSender sender, String[] subArgs) {
 		try {
-			piece.method.invoke(this, sender, subArgs);
+			piece.handle.invokeExact(sender, subArgs);
 		
-		} catch (Throwable t) {
+		} catch (Throwable cause) {
 			
-			Throwable cause = t instanceof InvocationTargetException ? ((InvocationTargetException) t).getCause() : t;
-
 			if (cause instanceof ExecuteException) {
-				// Totally fine
+				// Totally fine, but the sub-command didn't do anything
+				refundCooldowns(piece, sender);
 				if (cause.getMessage() != null) {
 					sender.sendMessage(TextComponent.fromLegacyText(ChatColor.RED + cause.getMessage()));
 				}
@@ -164,6 +233,16 @@ public abstract class SubCommandFramework extends CommandFramework {
 		}
 	}
 	
+	/**
+	 * Both the cooldown of the sub-command and the one of the whole command, since the errors are handled here.
+	 */
+	private void refundCooldowns(SubCommandPiece piece, CommandSender sender) {
+		if (piece.cooldown != null) {
+			piece.cooldown.refund(sender);
+		}
+		refundCooldown(sender);
+	}
+	
 	public final Collection<SubCommandPiece> getSubcommands() {
 		return subCommands.values();
 	}
@@ -244,20 +323,46 @@ public abstract class SubCommandFramework extends CommandFramework {
 		
 	}
 	
+	/**
+	 * Seconds that a player must wait before using the sub-command again, unless they have the bypass permission.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	public static @interface SubCommandCooldown {
+
+		int value();
+		
+		String bypassPermission() default "";
+		
+	}
+	
+	/**
+	 * How to complete each argument of the sub-command (after its name), in order.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	public static @interface SubCommandTabComplete {
+
+		ArgumentCompleter[] value();
+		
+	}
+	
 
 	private static class SubCommandPiece {
 		
-		private Method method;
+		private final MethodHandle handle;
 		private String permission;
 		private BaseComponent[] noPermissionMessage;
 		private String usage;
 		private int minArgs;
 		private boolean asyncSQL;
 		private BaseComponent[] asyncSQLMessage;
+		private CommandCooldown cooldown;
+		private ArgumentCompleter[] argumentCompleters;
 		
 		
-		public SubCommandPiece(Method method, String permission, String noPermissionMessage, String usage, int minArgs, boolean asyncSQL, String asyncSQLMessage) {
-			this.method = method;
+		public SubCommandPiece(MethodHandle handle, String permission, String noPermissionMessage, String usage, int minArgs, boolean asyncSQL, String asyncSQLMessage) {
+			this.handle = handle;
 			this.permission = permission;
 			if (noPermissionMessage != null) {
 				this.noPermissionMessage = TextComponent.fromLegacyText(ChatColor.RED + noPermissionMessage);
@@ -32,20 +32,23 @@ import lombok.NonNull;
 
 /**
  * Stringa case insensitive che non trasforma la stringa originale.
+ * 
+ * The static methods compare and hash any CharSequence case insensitively without copying it,
+ * with the same rules of String.equalsIgnoreCase().
  */
 public class CIString {
 	
 	private final String value;
-	private final int lowerCaseHashCode;
+	private final int caseInsensitiveHashCode;
 	
 	public CIString(@NonNull String s) {
 		this.value = s;
-		this.lowerCaseHashCode = s.toLowerCase().hashCode();
+		this.caseInsensitiveHashCode = hashCode(s);
 	}
 
 	@Override
 	public int hashCode() {
-		return lowerCaseHashCode;
+		return caseInsensitiveHashCode;
 	}
 
 	@Override
@@ -61,7 +64,7 @@ public class CIString {
 		}
 		
 		CIString other = (CIString) obj;
-		return other.value.equalsIgnoreCase(this.value);
+		return other.caseInsensitiveHashCode == this.caseInsensitiveHashCode && other.value.equalsIgnoreCase(this.value);
 	}
 	
 	@Override
@@ -69,4 +72,38 @@ public class CIString {
 		return value;
 	}
 	
+	
+	/**
+	 * Hash consistent with {@link #equalsIgnoreCase(CharSequence, CharSequence)}, without allocations.
+	 */
+	public static int hashCode(@NonNull CharSequence s) {
+		int hash = 0;
+		for (int i = 0; i < s.length(); i++) {
+			hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+		}
+		return hash;
+	}
+	
+	public static boolean equalsIgnoreCase(@NonNull CharSequence s1, @NonNull CharSequence s2) {
+		if (s1.length() != s2.length()) {
+			return false;
+		}
+		
+		for (int i = 0; i < s1.length(); i++) {
+			if (!equalsIgnoreCase(s1.charAt(i), s2.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public static boolean equalsIgnoreCase(char c1, char c2) {
+		if (c1 == c2) {
+			return true;
+		}
+		char upper1 = Character.toUpperCase(c1);
+		char upper2 = Character.toUpperCase(c2);
+		return upper1 == upper2 || Character.toLowerCase(upper1) == Character.toLowerCase(upper2);
+	}
+	
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+/**
+ * Stops the requests after many consecutive failures, so that an outage fails fast instead of waiting for timeouts.
+ * 
+ * When open, requests are rejected until the open time expires, then a single probe request is allowed (half open):
+ * if it succeeds the circuit closes, otherwise it opens again for a longer time.
+ */
+class CircuitBreaker {
+	
+	private final int failureThreshold;
+	private final long minOpenTime;
+	private final long maxOpenTime;
+	private final long probeTimeout;
+	
+	private int consecutiveFailures;
+	private long openTime;
+	private long openUntil; // 0 if closed
+	private long probeStarted; // 0 if no probe is running
+	
+	CircuitBreaker(int failureThreshold, long minOpenTime, long maxOpenTime, long probeTimeout) {
+		this.failureThreshold = failureThreshold;
+		this.minOpenTime = minOpenTime;
+		this.maxOpenTime = maxOpenTime;
+		this.probeTimeout = probeTimeout;
+	}
+	
+	synchronized boolean allowRequest() {
+		if (openUntil == 0) {
+			return true;
+		}
+		
+		long now = System.currentTimeMillis();
+		if (now < openUntil) {
+			return false;
+		}
+		
+		// Half open, a lost probe (for example never executed) is replaced after a while
+		if (probeStarted == 0 || now - probeStarted > probeTimeout) {
+			probeStarted = now;
+			return true;
+		}
+		return false;
+	}
+	
+	synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		openTime = 0;
+		openUntil = 0;
+		probeStarted = 0;
+	}
+	
+	synchronized void recordFailure() {
+		consecutiveFailures++;
+		
+		if (openUntil != 0) {
+			if (probeStarted == 0) {
+				return; // A request started before the circuit opened, not a probe
+			}
+			// The probe failed
+			openTime = Math.min(openTime * 2, maxOpenTime);
+		} else if (consecutiveFailures >= failureThreshold) {
+			openTime = minOpenTime;
+		} else {
+			return;
+		}
+		
+		openUntil = System.currentTimeMillis() + openTime;
+		probeStarted = 0;
+	}
+	
+	synchronized long getMillisUntilProbe() {
+		return openUntil == 0 ? 0 : Math.max(0, openUntil - System.currentTimeMillis());
+	}
+	
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import wild.api.util.CIString;
+
+/**
+ * Read-only index of the inactive entries of the registry, in a file mapped in memory so that they don't use the heap.
+ * 
+ * After the header (magic, version, amount of records, size of the tables, offset of the tables) there are the records:
+ * the UUID as two longs, the minute of the last login, the hash of the name and the length-prefixed UTF-8 name.
+ * Then the offsets of the records and two open addressing tables that map UUIDs and names to record numbers + 1.
+ * 
+ * Thread safe, the file is never modified after being written.
+ */
+class ColdRegistryIndex {
+	
+	private static final int MAGIC = 0x57554943; // "WUIC"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final float LOAD_FACTOR = 0.5f;
+	
+	private final MappedByteBuffer buffer;
+	private final int count;
+	private final int tableSize;
+	private final int recordOffsetsOffset;
+	private final int uuidTableOffset;
+	private final int nameTableOffset;
+	
+	private ColdRegistryIndex(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a UUID registry cold index");
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported UUID registry cold index version: " + version);
+		}
+		
+		this.count = buffer.getInt(8);
+		this.tableSize = buffer.getInt(12);
+		this.recordOffsetsOffset = buffer.getInt(16);
+		this.uuidTableOffset = recordOffsetsOffset + count * 4;
+		this.nameTableOffset = uuidTableOffset + tableSize * 4;
+		if (count < 0 || Integer.bitCount(tableSize) != 1 || count >= tableSize || recordOffsetsOffset < HEADER_SIZE
+				|| (long) recordOffsetsOffset + count * 4L + tableSize * 8L != buffer.capacity()) {
+			throw new IOException("Corrupted UUID registry cold index");
+		}
+	}
+	
+	static ColdRegistryIndex open(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"); FileChannel channel = randomAccessFile.getChannel()) {
+			// The mapping stays valid after closing the channel
+			return new ColdRegistryIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+	
+	/**
+	 * Writes the inactive entries of the index, see {@link UUIDNameIndex#forEachInactive(int, UUIDNameIndex.EntryConsumer)}.
+	 * The records are streamed to the file, only a few ints per record are kept in memory for the tables.
+	 * The file is forced to the disk before returning.
+	 */
+	static void write(File file, UUIDNameIndex index, int inactiveBeforeMinute) throws IOException {
+		try (FileOutputStream fileOutput = new FileOutputStream(file)) {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+			output.write(new byte[HEADER_SIZE]); // Written at the end
+			
+			RecordsWriter records = new RecordsWriter(output);
+			index.forEachInactive(inactiveBeforeMinute, records);
+			
+			int count = records.count;
+			int tableSize = Integer.highestOneBit(Math.max(16, (int) Math.ceil(count / LOAD_FACTOR)) - 1) << 1;
+			long recordOffsetsOffset = HEADER_SIZE + records.size;
+			if (recordOffsetsOffset + count * 4L + tableSize * 8L > Integer.MAX_VALUE) {
+				throw new IOException("Too many inactive entries for a cold index: " + count);
+			}
+			
+			for (int record = 0; record < count; record++) {
+				output.writeInt(records.recordOffsets[record]);
+			}
+			writeTable(output, records.uuidHashes, count, tableSize);
+			writeTable(output, records.nameHashes, count, tableSize);
+			output.flush();
+			
+			fileOutput.getChannel().position(0);
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(count);
+			output.writeInt(tableSize);
+			output.writeInt((int) recordOffsetsOffset);
+			output.flush();
+			fileOutput.getChannel().force(true);
+		}
+	}
+	
+	private static void writeTable(DataOutputStream output, int[] hashes, int count, int tableSize) throws IOException {
+		int[] table = new int[tableSize];
+		int mask = tableSize - 1;
+		
+		for (int record = 0; record < count; record++) {
+			int slot = UUIDNameIndex.mix(hashes[record]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = record + 1;
+		}
+		
+		for (int value : table) {
+			output.writeInt(value);
+		}
+	}
+	
+	int size() {
+		return count;
+	}
+	
+	/**
+	 * Returns the record number, or -1.
+	 */
+	int findUUID(long mostSig, long leastSig) {
+		int mask = tableSize - 1;
+		int slot = UUIDNameIndex.mix(UUIDNameIndex.hashUUID(mostSig, leastSig)) & mask;
+		int value;
+		
+		// The probes are bounded in case of a corrupted file
+		for (int probes = 0; probes < tableSize && (value = buffer.getInt(uuidTableOffset + slot * 4)) != 0; probes++) {
+			int position = recordOffset(value - 1);
+			if (buffer.getLong(position) == mostSig && buffer.getLong(position + 8) == leastSig) {
+				return value - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the record number, or -1.
+	 */
+	int findName(CharSequence name, int nameHash) {
+		int mask = tableSize - 1;
+		int slot = UUIDNameIndex.mix(nameHash) & mask;
+		int value;
+		
+		for (int probes = 0; probes < tableSize && (value = buffer.getInt(nameTableOffset + slot * 4)) != 0; probes++) {
+			if (buffer.getInt(recordOffset(value - 1) + 20) == nameHash && CIString.equalsIgnoreCase(getName(value - 1), name)) {
+				return value - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	long getMostSigBits(int record) {
+		return buffer.getLong(recordOffset(record));
+	}
+	
+	long getLeastSigBits(int record) {
+		return buffer.getLong(recordOffset(record) + 8);
+	}
+	
+	int getLastSeen(int record) {
+		return buffer.getInt(recordOffset(record) + 16);
+	}
+	
+	String getName(int record) {
+		return new String(getNameBytes(record), StandardCharsets.UTF_8);
+	}
+	
+	byte[] getNameBytes(int record) {
+		int position = recordOffset(record) + 24;
+		byte[] nameBytes = new byte[buffer.get(position) & 0xFF];
+		for (int i = 0; i < nameBytes.length; i++) {
+			nameBytes[i] = buffer.get(position + 1 + i);
+		}
+		return nameBytes;
+	}
+	
+	private int recordOffset(int record) {
+		return buffer.getInt(recordOffsetsOffset + record * 4);
+	}
+	
+	
+	private static class RecordsWriter implements UUIDNameIndex.EntryConsumer {
+		
+		private final DataOutputStream output;
+		private int[] recordOffsets = new int[1024];
+		private int[] uuidHashes = new int[1024];
+		private int[] nameHashes = new int[1024];
+		private int count;
+		private long size;
+		
+		private RecordsWriter(DataOutputStream output) {
+			this.output = output;
+		}
+		
+		@Override
+		public void accept(long mostSigBits, long leastSigBits, int lastSeen, byte[] nameBytes, int offset, int length) throws IOException {
+			if (HEADER_SIZE + size > Integer.MAX_VALUE) {
+				throw new IOException("Too many inactive entries for a cold index");
+			}
+			if (count == recordOffsets.length) {
+				int capacity = count * 2;
+				recordOffsets = Arrays.copyOf(recordOffsets, capacity);
+				uuidHashes = Arrays.copyOf(uuidHashes, capacity);
+				nameHashes = Arrays.copyOf(nameHashes, capacity);
+			}
+			
+			int nameHash = CIString.hashCode(new String(nameBytes, offset, length, StandardCharsets.UTF_8));
+			recordOffsets[count] = (int) (HEADER_SIZE + size);
+			uuidHashes[count] = UUIDNameIndex.hashUUID(mostSigBits, leastSigBits);
+			nameHashes[count] = nameHash;
+			count++;
+			
+			output.writeLong(mostSigBits);
+			output.writeLong(leastSigBits);
+			output.writeInt(lastSeen);
+			output.writeInt(nameHash);
+			output.writeByte(length);
+			output.write(nameBytes, offset, length);
+			size += 25 + length;
+		}
+		
+	}
+	
+}
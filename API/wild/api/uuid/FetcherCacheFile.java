@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import wild.api.util.CIString;
+
+/**
+ * Binary file with the caches of the fetcher, so that they survive restarts. After the header (magic, version),
+ * there are four sections each starting with the amount of entries: UUIDs of names, names of UUIDs,
+ * unknown names and unknown UUIDs. Every entry keeps the original timestamp, so the expiration is the same.
+ */
+class FetcherCacheFile {
+	
+	private static final int MAGIC = 0x57554643; // "WUFC"
+	private static final int VERSION = 1;
+	
+	static void write(File file, Map<CIString, UUIDData> uuidCache, Map<UUID, NameData> nameCache,
+			NegativeCache<CIString> unknownNames, NegativeCache<UUID> unknownUUIDs, long now) throws IOException {
+		
+		File tempFile = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fileOutput = new FileOutputStream(tempFile)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			
+			out.writeInt(uuidCache.size());
+			for (Map.Entry<CIString, UUIDData> entry : uuidCache.entrySet()) {
+				out.writeUTF(entry.getKey().toString());
+				writeUUID(out, entry.getValue().getUuid());
+				out.writeLong(entry.getValue().getFetchTimestamp());
+			}
+			
+			out.writeInt(nameCache.size());
+			for (Map.Entry<UUID, NameData> entry : nameCache.entrySet()) {
+				writeUUID(out, entry.getKey());
+				out.writeUTF(entry.getValue().getName());
+				out.writeLong(entry.getValue().getFetchTimestamp());
+			}
+			
+			writeNegativeCache(out, unknownNames, now, name -> out.writeUTF(name.toString()));
+			writeNegativeCache(out, unknownUUIDs, now, uuid -> writeUUID(out, uuid));
+			
+			out.flush();
+			fileOutput.getChannel().force(true);
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Adds the entries of the file to the caches, skipping the expired ones.
+	 */
+	static void read(File file, Map<CIString, UUIDData> uuidCache, Map<UUID, NameData> nameCache,
+			NegativeCache<CIString> unknownNames, NegativeCache<UUID> unknownUUIDs, long now, long cacheMaxAge) throws IOException {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a UUID fetcher cache: " + file.getName());
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported UUID fetcher cache version: " + version);
+			}
+			
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				CIString name = new CIString(in.readUTF());
+				UUIDData uuidData = new UUIDData(readUUID(in), in.readLong());
+				if (uuidData.isFresh(now, cacheMaxAge)) {
+					uuidCache.put(name, uuidData);
+				}
+			}
+			
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				UUID uuid = readUUID(in);
+				NameData nameData = new NameData(in.readUTF(), in.readLong());
+				if (nameData.isFresh(now, cacheMaxAge)) {
+					nameCache.put(uuid, nameData);
+				}
+			}
+			
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				unknownNames.restore(new CIString(in.readUTF()), in.readLong(), now);
+			}
+			
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				unknownUUIDs.restore(readUUID(in), in.readLong(), now);
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated UUID fetcher cache: " + file.getName());
+		}
+	}
+	
+	private static <K> void writeNegativeCache(DataOutputStream out, NegativeCache<K> cache, long now, KeyWriter<K> keyWriter) throws IOException {
+		Map<K, Long> entries = new LinkedHashMap<>();
+		cache.forEach(now, entries::put);
+		
+		out.writeInt(entries.size());
+		for (Map.Entry<K, Long> entry : entries.entrySet()) {
+			keyWriter.write(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+	}
+	
+	private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+		out.writeLong(uuid.getMostSignificantBits());
+		out.writeLong(uuid.getLeastSignificantBits());
+	}
+	
+	private static UUID readUUID(DataInputStream in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+	
+	
+	private interface KeyWriter<K> {
+		
+		void write(K key) throws IOException;
+		
+	}
+	
+}
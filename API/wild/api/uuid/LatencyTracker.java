@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies to compute their percentiles.
+ */
+class LatencyTracker {
+	
+	private final long[] samples;
+	private final int minSamples;
+	private int count;
+	private int next;
+	
+	LatencyTracker(int maxSamples, int minSamples) {
+		this.samples = new long[maxSamples];
+		this.minSamples = minSamples;
+	}
+	
+	synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+	}
+	
+	/**
+	 * Returns the percentile (from 0 to 1) of the recent latencies, or -1 if there are not enough samples yet.
+	 */
+	synchronized long getPercentile(double percentile) {
+		if (count < minSamples) {
+			return -1;
+		}
+		
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		return sorted[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)];
+	}
+	
+}
@@ -41,9 +41,5 @@ class NameData {
 	boolean isFresh(long now, long maxAge) {
 		return now - fetchTimestamp <= maxAge;
 	}
-
-	public boolean isValidProfile() {
-		return name != null;
-	}
 	
 }
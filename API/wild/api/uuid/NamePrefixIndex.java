@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Names of the registry sorted case insensitively, for prefix searches with a binary search.
+ * 
+ * It's immutable once built, and keeps a reference to the arena of the index at the time of the build:
+ * the bytes of a name are never overwritten in an arena, new names are appended and compaction creates a new arena.
+ * The entries may have been removed or renamed meanwhile, so they must be checked with the index.
+ */
+class NamePrefixIndex {
+	
+	static final NamePrefixIndex EMPTY = new NamePrefixIndex(new byte[0], new int[0], new int[0], 0);
+	
+	private final byte[] arena;
+	private final int[] offsets;
+	private final int[] entries;
+	private final int coveredChanges; // Amount of unsorted entries of the index included in the build
+	
+	private NamePrefixIndex(byte[] arena, int[] offsets, int[] entries, int coveredChanges) {
+		this.arena = arena;
+		this.offsets = offsets;
+		this.entries = entries;
+		this.coveredChanges = coveredChanges;
+	}
+	
+	/**
+	 * Sorts the entries whose offset is not negative. It's slow, it shouldn't run while holding locks.
+	 */
+	static NamePrefixIndex build(byte[] arena, int[] nameOffsets, int coveredChanges) {
+		int count = 0;
+		for (int nameOffset : nameOffsets) {
+			if (nameOffset >= 0) {
+				count++;
+			}
+		}
+		
+		int[] entries = new int[count];
+		int position = 0;
+		for (int entry = 0; entry < nameOffsets.length; entry++) {
+			if (nameOffsets[entry] >= 0) {
+				entries[position++] = entry;
+			}
+		}
+		sort(entries, new int[count], 0, count, arena, nameOffsets);
+		
+		int[] offsets = new int[count];
+		for (int i = 0; i < count; i++) {
+			offsets[i] = nameOffsets[entries[i]];
+		}
+		return new NamePrefixIndex(arena, offsets, entries, coveredChanges);
+	}
+	
+	/**
+	 * Merge sort of the entries by name, on primitive arrays to avoid boxing them.
+	 */
+	private static void sort(int[] entries, int[] buffer, int from, int to, byte[] arena, int[] nameOffsets) {
+		if (to - from < 2) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		sort(entries, buffer, from, middle, arena, nameOffsets);
+		sort(entries, buffer, middle, to, arena, nameOffsets);
+		if (compareNames(arena, nameOffsets[entries[middle - 1]], nameOffsets[entries[middle]]) <= 0) {
+			return; // Already in order
+		}
+		
+		System.arraycopy(entries, from, buffer, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle && compareNames(arena, nameOffsets[buffer[left]], nameOffsets[buffer[right]]) <= 0)) {
+				entries[i] = buffer[left++];
+			} else {
+				entries[i] = buffer[right++];
+			}
+		}
+	}
+	
+	int size() {
+		return entries.length;
+	}
+	
+	int getEntry(int position) {
+		return entries[position];
+	}
+	
+	int getCoveredChanges() {
+		return coveredChanges;
+	}
+	
+	/**
+	 * Returns the position of the first name which is not lower than the prefix.
+	 */
+	int lowerBound(String prefix) {
+		int low = 0;
+		int high = offsets.length;
+		
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (comparePrefix(arena, offsets[middle], prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	boolean startsWith(int position, String prefix) {
+		return comparePrefix(arena, offsets[position], prefix) == 0;
+	}
+	
+	/**
+	 * Returns true if the name at the position is still the name of the entry in the index.
+	 */
+	boolean hasSameName(int position, byte[] arena, int nameOffset) {
+		return this.arena == arena && offsets[position] == nameOffset;
+	}
+	
+	
+	/**
+	 * Compares a length-prefixed name with the prefix, as if the name was truncated to the length of the prefix.
+	 */
+	static int comparePrefix(byte[] arena, int nameOffset, String prefix) {
+		int length = arena[nameOffset] & 0xFF;
+		if (!isAscii(arena, nameOffset + 1, length)) {
+			return comparePrefix(decode(arena, nameOffset), prefix);
+		}
+		
+		int commonLength = Math.min(length, prefix.length());
+		for (int i = 0; i < commonLength; i++) {
+			int difference = fold((char) arena[nameOffset + 1 + i]) - fold(prefix.charAt(i));
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length >= prefix.length() ? 0 : -1;
+	}
+	
+	private static int comparePrefix(String name, String prefix) {
+		int commonLength = Math.min(name.length(), prefix.length());
+		for (int i = 0; i < commonLength; i++) {
+			int difference = fold(name.charAt(i)) - fold(prefix.charAt(i));
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return name.length() >= prefix.length() ? 0 : -1;
+	}
+	
+	private static int compareNames(byte[] arena, int nameOffset1, int nameOffset2) {
+		int length1 = arena[nameOffset1] & 0xFF;
+		int length2 = arena[nameOffset2] & 0xFF;
+		if (!isAscii(arena, nameOffset1 + 1, length1) || !isAscii(arena, nameOffset2 + 1, length2)) {
+			return compareNames(decode(arena, nameOffset1), decode(arena, nameOffset2));
+		}
+		
+		int commonLength = Math.min(length1, length2);
+		for (int i = 0; i < commonLength; i++) {
+			int difference = fold((char) arena[nameOffset1 + 1 + i]) - fold((char) arena[nameOffset2 + 1 + i]);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length1 - length2;
+	}
+	
+	private static int compareNames(String name1, String name2) {
+		int commonLength = Math.min(name1.length(), name2.length());
+		for (int i = 0; i < commonLength; i++) {
+			int difference = fold(name1.charAt(i)) - fold(name2.charAt(i));
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return name1.length() - name2.length();
+	}
+	
+	private static boolean isAscii(byte[] bytes, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static String decode(byte[] arena, int nameOffset) {
+		return new String(arena, nameOffset + 1, arena[nameOffset] & 0xFF, StandardCharsets.UTF_8);
+	}
+	
+	private static char fold(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+	
+}
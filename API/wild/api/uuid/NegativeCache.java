@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Remembers the keys for which no profile exists, separately from the positive caches.
+ * The oldest entries are dropped when the maximum size is reached.
+ */
+class NegativeCache<K> {
+
+	private final Map<K, Long> timestamps;
+	private final long maxAge;
+	
+	NegativeCache(int maxSize, long maxAge) {
+		this.maxAge = maxAge;
+		this.timestamps = new LinkedHashMap<K, Long>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	synchronized boolean contains(K key, long now) {
+		Long timestamp = timestamps.get(key);
+		if (timestamp == null) {
+			return false;
+		}
+		
+		if (now - timestamp > maxAge) {
+			timestamps.remove(key);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	synchronized void add(K key, long now) {
+		timestamps.remove(key); // Move to the end of the insertion order
+		timestamps.put(key, now);
+	}
+	
+	synchronized void remove(K key) {
+		timestamps.remove(key);
+	}
+	
+	/**
+	 * Adds an entry saved previously, unless it's expired.
+	 */
+	synchronized void restore(K key, long timestamp, long now) {
+		if (now - timestamp <= maxAge) {
+			add(key, timestamp);
+		}
+	}
+	
+	/**
+	 * Iterates the entries that are not expired, from the oldest.
+	 */
+	synchronized void forEach(long now, BiConsumer<K, Long> consumer) {
+		timestamps.forEach((key, timestamp) -> {
+			if (now - timestamp <= maxAge) {
+				consumer.accept(key, timestamp);
+			}
+		});
+	}
+	
+}
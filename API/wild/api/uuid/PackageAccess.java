@@ -40,4 +40,16 @@ public class PackageAccess {
 		UUIDRegistry.save();
 	}
 	
+	public static void UUIDRegistry_closeSharedStorage() {
+		UUIDRegistry.closeSharedStorage();
+	}
+	
+	public static void UUIDFetcher_initPersistentCache() {
+		UUIDFetcher.initPersistentCache();
+	}
+	
+	public static void UUIDFetcher_saveCache() {
+		UUIDFetcher.saveCache();
+	}
+	
 }
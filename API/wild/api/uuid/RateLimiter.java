@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: allows bursts up to the capacity, and refills the permits at a constant rate.
+ * Some permits can be left to other callers by passing the amount to keep in reserve.
+ */
+class RateLimiter {
+	
+	private final int capacity;
+	private final double nanosPerPermit;
+	
+	private double permits;
+	private long lastRefill;
+	
+	RateLimiter(int permitsPerPeriod, long period, TimeUnit unit) {
+		this.capacity = permitsPerPeriod;
+		this.nanosPerPermit = (double) unit.toNanos(period) / permitsPerPeriod;
+		this.permits = permitsPerPeriod;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	synchronized boolean tryAcquire(int reserved) {
+		refill();
+		if (permits >= 1 + reserved) {
+			permits--;
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	synchronized long getMillisUntilAvailable(int reserved) {
+		refill();
+		if (permits >= 1 + reserved) {
+			return 0;
+		} else {
+			return (long) Math.ceil((1 + reserved - permits) * nanosPerPermit / 1000000);
+		}
+	}
+	
+	private void refill() {
+		long now = System.nanoTime();
+		permits = Math.min(capacity, permits + (now - lastRefill) / nanosPerPermit);
+		lastRefill = now;
+	}
+	
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import lombok.Getter;
+
+/**
+ * Append-only log of the registry changes made after the last snapshot.
+ * Each line is a "uuid,name" association, in the same order as they were registered.
+ * 
+ * Not thread safe, callers must synchronize externally.
+ */
+class RegistryJournal {
+
+	private final File file;
+	private final File rotatedFile;
+	private BufferedWriter writer;
+	
+	@Getter private int entries;
+	
+	RegistryJournal(File file) {
+		this.file = file;
+		this.rotatedFile = new File(file.getPath() + ".old");
+	}
+	
+	/**
+	 * Reads the journal left by a compaction that did not complete (if any), then the current one.
+	 */
+	void replay(BiConsumer<UUID, String> consumer, Logger logger) throws IOException {
+		entries = replay(rotatedFile, consumer, logger) + replay(file, consumer, logger);
+	}
+	
+	private int replay(File file, BiConsumer<UUID, String> consumer, Logger logger) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		
+		int count = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] values = line.split(",");
+				if (values.length != 2) {
+					logger.warning("Found bad line in the UUID registry journal: " + line);
+					continue;
+				}
+				consumer.accept(UUID.fromString(values[0]), values[1]);
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	void open() throws IOException {
+		writer = new BufferedWriter(new FileWriter(file, true));
+	}
+	
+	void appendAssociation(UUID uuid, String name) throws IOException {
+		append(uuid.toString() + "," + name);
+	}
+	
+	private void append(String line) throws IOException {
+		writer.append(line);
+		writer.newLine();
+		writer.flush(); // Don't lose anything on crash
+		entries++;
+	}
+	
+	/**
+	 * Moves the current journal aside and starts a new one. The rotated journal must be kept
+	 * until a snapshot containing all its changes has been written, then deleted.
+	 */
+	void rotate() throws IOException {
+		writer.close();
+		
+		if (rotatedFile.exists()) {
+			// The last compaction failed, the older changes must stay first
+			try (FileChannel channel = FileChannel.open(rotatedFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				ByteBuffer changes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+				while (changes.hasRemaining()) {
+					channel.write(changes);
+				}
+				channel.force(true); // Before deleting the changes from the current journal
+			}
+			Files.delete(file.toPath());
+		} else if (!file.renameTo(rotatedFile)) {
+			throw new IOException("Couldn't rename " + file.getName() + " to " + rotatedFile.getName());
+		}
+		
+		entries = 0;
+		open();
+	}
+	
+	void deleteRotated() throws IOException {
+		Files.deleteIfExists(rotatedFile.toPath());
+	}
+	
+	void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+		}
+	}
+	
+}
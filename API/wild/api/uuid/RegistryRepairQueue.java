@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * UUIDs whose name must be fetched again, for example after a name conflict. Each UUID is queued at most once,
+ * failed attempts are retried with exponential backoff and jitter, and a single worker drains the queue
+ * only while the API limits allow it.
+ */
+class RegistryRepairQueue {
+	
+	private static final int MAX_SIZE = 10000;
+	private static final int MAX_ATTEMPTS = 20;
+	private static final long BASE_DELAY = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_DELAY = TimeUnit.MINUTES.toMillis(10);
+	
+	private final Logger logger;
+	private final RepairedListener repairedListener;
+	
+	private final PriorityQueue<Repair> queue = new PriorityQueue<>((repair1, repair2) -> Long.compare(repair1.dueTime, repair2.dueTime));
+	private final Map<UUID, Repair> repairsByUUID = new HashMap<>();
+	
+	@Getter private int peakSize;
+	@Getter private long repairedCount;
+	@Getter private long failedAttemptsCount;
+	@Getter private long droppedCount;
+	
+	RegistryRepairQueue(Logger logger, RepairedListener repairedListener) {
+		this.logger = logger;
+		this.repairedListener = repairedListener;
+	}
+	
+	synchronized void add(UUID uuid, int failedAttempts) {
+		add(uuid, failedAttempts, null);
+	}
+	
+	/**
+	 * Queues the UUID, unless it's already queued.
+	 * 
+	 * @param failedAttempts the attempts already made, which delay the first one made by the queue
+	 * @param displacedName the name that the UUID lost in a conflict, passed to the listener, can be null
+	 */
+	synchronized void add(UUID uuid, int failedAttempts, String displacedName) {
+		if (repairsByUUID.containsKey(uuid)) {
+			return;
+		}
+		
+		if (queue.size() >= MAX_SIZE) {
+			if (droppedCount++ % 1000 == 0) {
+				logger.warning("The UUID registry repair queue is full (" + MAX_SIZE + " UUIDs), dropped " + droppedCount + " repairs so far");
+			}
+			return;
+		}
+		
+		Repair repair = new Repair(uuid, displacedName, failedAttempts, System.currentTimeMillis() + backoffDelay(failedAttempts));
+		queue.add(repair);
+		repairsByUUID.put(uuid, repair);
+		peakSize = Math.max(peakSize, queue.size());
+	}
+	
+	synchronized int size() {
+		return queue.size();
+	}
+	
+	/**
+	 * Runs the repairs that are due, stopping when the API limits are reached. Must be called by a single thread.
+	 */
+	void drain() {
+		Repair repair;
+		while ((repair = pollDue()) != null) {
+			try {
+				String name = UUIDFetcher.fetchNameFromAPI(repair.uuid); // The registry could return the outdated name
+				logger.info("Fetched online name for UUID " + repair.uuid + ": " + name);
+				synchronized (this) {
+					repairedCount++;
+				}
+				repairedListener.onRepaired(repair.uuid, name, repair.displacedName);
+				
+			} catch (ProfileNotFoundException e) {
+				logger.log(Level.WARNING, "Found invalid UUID: " + repair.uuid);
+				
+			} catch (APILimitException e) {
+				// Not counted as an attempt, the other repairs would fail too
+				requeue(repair, repair.attempts, System.currentTimeMillis() + Math.max(UUIDFetcher.getMillisUntilAPIAvailable(RequestPriority.BACKGROUND), 1000));
+				return;
+				
+			} catch (Throwable t) {
+				int attempts = repair.attempts + 1;
+				synchronized (this) {
+					failedAttemptsCount++;
+				}
+				
+				if (attempts >= MAX_ATTEMPTS) {
+					logger.log(Level.WARNING, "Failed to resolve name for UUID " + repair.uuid + ", giving up after " + attempts + " attempts", t);
+				} else {
+					logger.log(Level.WARNING, "Failed to resolve name for UUID " + repair.uuid + ", retrying later (attempt #" + attempts + ")", t);
+					requeue(repair, attempts, System.currentTimeMillis() + backoffDelay(attempts));
+				}
+			}
+		}
+	}
+	
+	private synchronized Repair pollDue() {
+		Repair next = queue.peek();
+		if (next == null || next.dueTime > System.currentTimeMillis() || UUIDFetcher.getMillisUntilAPIAvailable(RequestPriority.BACKGROUND) > 0) {
+			return null;
+		}
+		
+		queue.poll();
+		repairsByUUID.remove(next.uuid);
+		return next;
+	}
+	
+	private synchronized void requeue(Repair failed, int attempts, long dueTime) {
+		if (repairsByUUID.containsKey(failed.uuid)) {
+			return; // Queued again meanwhile
+		}
+		
+		Repair repair = new Repair(failed.uuid, failed.displacedName, attempts, dueTime);
+		queue.add(repair);
+		repairsByUUID.put(repair.uuid, repair);
+	}
+	
+	/**
+	 * Exponential delay with jitter, between half and the whole delay, so that repairs failed together are spread out.
+	 */
+	private static long backoffDelay(int failedAttempts) {
+		if (failedAttempts <= 0) {
+			return 0;
+		}
+		
+		long delay = Math.min(BASE_DELAY << Math.min(failedAttempts - 1, 20), MAX_DELAY);
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+	
+	
+	@AllArgsConstructor
+	private static class Repair {
+		
+		private final UUID uuid;
+		private final String displacedName;
+		private final int attempts;
+		private final long dueTime;
+		
+	}
+	
+	interface RepairedListener {
+		
+		void onRepaired(UUID uuid, String name, String displacedName);
+		
+	}
+	
+}
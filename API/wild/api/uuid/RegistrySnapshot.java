@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary snapshot of the registry. After the header (magic, version, amount of entries),
+ * each entry is stored as two longs for the UUID, the minute of the last login (since version 2)
+ * and a length-prefixed UTF-8 name.
+ */
+class RegistrySnapshot {
+	
+	private static final int MAGIC = 0x57554944; // "WUID"
+	private static final int VERSION = 2;
+	
+	static void read(File file, EntryConsumer consumer) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"); FileChannel channel = randomAccessFile.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			try {
+				if (buffer.getInt() != MAGIC) {
+					throw new IOException("Not a UUID registry snapshot: " + file.getName());
+				}
+				int version = buffer.getInt();
+				if (version != 1 && version != VERSION) {
+					throw new IOException("Unsupported UUID registry snapshot version: " + version);
+				}
+				
+				int count = buffer.getInt();
+				byte[] nameBytes = new byte[64];
+				
+				for (int i = 0; i < count; i++) {
+					long mostSigBits = buffer.getLong();
+					long leastSigBits = buffer.getLong();
+					int lastSeen = version >= 2 ? buffer.getInt() : 0;
+					int nameLength = buffer.getShort() & 0xFFFF;
+					if (nameLength > nameBytes.length) {
+						nameBytes = new byte[nameLength];
+					}
+					buffer.get(nameBytes, 0, nameLength);
+					consumer.accept(mostSigBits, leastSigBits, lastSeen, new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8));
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated UUID registry snapshot: " + file.getName());
+			}
+		}
+	}
+	
+	/**
+	 * The file is forced to the disk before returning, so that it can replace the previous snapshot.
+	 */
+	static void write(File file, UUIDNameIndex index) throws IOException {
+		try (FileOutputStream fileOutput = new FileOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput, 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(index.size());
+			
+			index.forEach((mostSigBits, leastSigBits, lastSeen, nameBytes, offset, length) -> {
+				out.writeLong(mostSigBits);
+				out.writeLong(leastSigBits);
+				out.writeInt(lastSeen);
+				out.writeShort(length);
+				out.write(nameBytes, offset, length);
+			});
+			
+			out.flush();
+			fileOutput.getChannel().force(true);
+		}
+	}
+	
+	
+	interface EntryConsumer {
+		
+		void accept(long mostSigBits, long leastSigBits, int lastSeen, String name);
+		
+	}
+	
+}
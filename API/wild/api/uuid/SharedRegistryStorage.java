@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import wild.api.mysql.MySQL;
+import wild.api.mysql.SQLResult;
+
+/**
+ * Shares the registry between proxies through MySQL. The table "uuid_registry" contains the current associations,
+ * while "uuid_registry_changes" is a log of the recent changes that every proxy polls incrementally.
+ * 
+ * The queries are executed by the same async task, except for the lookups of the fetcher which share the connection
+ * through a lock. The MySQL instance should not be used elsewhere.
+ */
+class SharedRegistryStorage {
+	
+	private static final int BATCH_SIZE = 500;
+	private static final long CHANGES_RETENTION = TimeUnit.DAYS.toMillis(7);
+	private static final long PRUNE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	private static final long LOOKUP_LOCK_TIMEOUT = 500; // Milliseconds, lookups give up while a long synchronization is running
+	private static final int TRAILING_CHANGES = 1000; // Concurrent proxies can commit ids out of order, the last ones are polled again
+	
+	private final MySQL mysql;
+	private final File positionFile;
+	private final Logger logger;
+	private final Queue<Association> pendingWrites;
+	private final ReentrantLock connectionLock;
+	
+	private long lastChangeId;
+	private final Set<Long> appliedChangeIds = new HashSet<>(); // Only the ones in the trailing window, saved with the position
+	private boolean synced;
+	private boolean closed;
+	private long lastPrune;
+	
+	SharedRegistryStorage(MySQL mysql, File positionFile, Logger logger) throws SQLException {
+		this.mysql = mysql;
+		this.positionFile = positionFile;
+		this.logger = logger;
+		this.pendingWrites = new ConcurrentLinkedQueue<>();
+		this.connectionLock = new ReentrantLock();
+		
+		mysql.update("CREATE TABLE IF NOT EXISTS uuid_registry ("
+				+ "uuid CHAR(36) NOT NULL PRIMARY KEY, "
+				+ "name VARCHAR(32) NOT NULL, "
+				+ "updated_at BIGINT NOT NULL, "
+				+ "INDEX (name))");
+		mysql.update("CREATE TABLE IF NOT EXISTS uuid_registry_changes ("
+				+ "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, "
+				+ "uuid CHAR(36) NOT NULL, "
+				+ "name VARCHAR(32) NOT NULL, "
+				+ "created_at BIGINT NOT NULL)");
+	}
+	
+	void enqueue(UUID uuid, String name) {
+		pendingWrites.add(new Association(uuid, name));
+	}
+	
+	/**
+	 * Writes the pending associations and applies the changes made by the other proxies.
+	 */
+	void synchronize() {
+		connectionLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			if (!synced) {
+				initialSync();
+				synced = true;
+			}
+			
+			flushPendingWrites();
+			pollChanges();
+			
+			long now = System.currentTimeMillis();
+			if (now - lastPrune > PRUNE_INTERVAL) {
+				mysql.preparedUpdate("DELETE FROM uuid_registry_changes WHERE created_at < ?", now - CHANGES_RETENTION);
+				lastPrune = now;
+			}
+		} catch (SQLException ex) {
+			logger.log(Level.WARNING, "Couldn't synchronize the shared UUID registry, retrying later", ex);
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes the pending associations synchronously, then stops the synchronization. Called on shutdown.
+	 */
+	void close() {
+		connectionLock.lock();
+		try {
+			closed = true;
+			if (synced) {
+				flushPendingWrites();
+			} else if (!pendingWrites.isEmpty()) {
+				logger.warning("Couldn't write " + pendingWrites.size() + " associations to the shared UUID registry, it was never synchronized");
+			}
+		} catch (SQLException ex) {
+			logger.log(Level.WARNING, "Couldn't write " + pendingWrites.size() + " associations to the shared UUID registry on shutdown", ex);
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the UUID of the name if it was written within the maximum age (negative for any age), otherwise null.
+	 * Also returns null on errors, or if the connection is busy for too long.
+	 */
+	UUID findUUID(String name, long maxAge) {
+		String uuid = lookup("SELECT uuid FROM uuid_registry WHERE name = ? AND updated_at >= ? ORDER BY updated_at DESC LIMIT 1", name, maxAge);
+		return uuid != null ? UUID.fromString(uuid) : null;
+	}
+	
+	/**
+	 * Same as findUUID(), but for the name of a UUID.
+	 */
+	String findName(UUID uuid, long maxAge) {
+		return lookup("SELECT name FROM uuid_registry WHERE uuid = ? AND updated_at >= ?", uuid.toString(), maxAge);
+	}
+	
+	private String lookup(String query, String key, long maxAge) {
+		long minUpdatedAt = maxAge < 0 ? 0 : System.currentTimeMillis() - maxAge;
+		
+		try {
+			if (!connectionLock.tryLock(LOOKUP_LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		
+		try (SQLResult result = mysql.preparedQuery(query, key, minUpdatedAt)) {
+			return result.next() ? result.getString(1) : null;
+		} catch (SQLException ex) {
+			logger.log(Level.WARNING, "Couldn't query the shared UUID registry", ex);
+			return null;
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	private void initialSync() throws SQLException {
+		lastChangeId = readPosition();
+		
+		long oldestChangeId;
+		long newestChangeId;
+		boolean emptyLog;
+		try (SQLResult result = mysql.query("SELECT MIN(id), MAX(id) FROM uuid_registry_changes")) {
+			result.next();
+			oldestChangeId = result.getLong(1);
+			emptyLog = result.wasNull();
+			newestChangeId = result.getLong(2);
+		}
+		
+		boolean changesAvailable;
+		if (emptyLog) {
+			// The log may have been pruned completely, only the next id tells if changes were missed (0 if unknown)
+			long nextChangeId = readNextChangeId();
+			changesAvailable = nextChangeId > 0 && lastChangeId >= nextChangeId - 1;
+			newestChangeId = Math.max(0, nextChangeId - 1);
+		} else {
+			changesAvailable = lastChangeId >= oldestChangeId - 1;
+		}
+		
+		if (lastChangeId > 0 && changesAvailable) {
+			return; // The changes since the last poll are still available
+		}
+		
+		logger.info("Loading the whole shared UUID registry...");
+		List<Association> associations = new ArrayList<>(BATCH_SIZE);
+		try (SQLResult result = mysql.query("SELECT uuid, name FROM uuid_registry")) {
+			while (result.next()) {
+				associations.add(new Association(UUID.fromString(result.getString(1)), result.getString(2)));
+				if (associations.size() >= BATCH_SIZE) {
+					UUIDRegistry.registerSharedAssociations(associations);
+					associations.clear();
+				}
+			}
+		}
+		UUIDRegistry.registerSharedAssociations(associations);
+		
+		// Changes made during the full load are polled again, which is harmless
+		appliedChangeIds.clear();
+		updatePosition(newestChangeId);
+	}
+	
+	private void flushPendingWrites() throws SQLException {
+		while (!pendingWrites.isEmpty()) {
+			List<Association> batch = new ArrayList<>(BATCH_SIZE);
+			Iterator<Association> iterator = pendingWrites.iterator();
+			while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+				batch.add(iterator.next());
+			}
+			
+			long now = System.currentTimeMillis();
+			Object[] registryParameters = new Object[batch.size() * 3];
+			Object[] changesParameters = new Object[batch.size() * 3];
+			StringBuilder values = new StringBuilder();
+			
+			for (int i = 0; i < batch.size(); i++) {
+				Association association = batch.get(i);
+				registryParameters[i * 3] = changesParameters[i * 3] = association.getUuid().toString();
+				registryParameters[i * 3 + 1] = changesParameters[i * 3 + 1] = association.getName();
+				registryParameters[i * 3 + 2] = changesParameters[i * 3 + 2] = now;
+				values.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+			}
+			
+			mysql.preparedUpdate("INSERT INTO uuid_registry (uuid, name, updated_at) VALUES " + values
+					+ " ON DUPLICATE KEY UPDATE name = VALUES(name), updated_at = VALUES(updated_at)", registryParameters);
+			mysql.preparedUpdate("INSERT INTO uuid_registry_changes (uuid, name, created_at) VALUES " + values, changesParameters);
+			
+			// Only this task removes elements, they are still the first ones
+			for (int i = 0; i < batch.size(); i++) {
+				pendingWrites.poll();
+			}
+		}
+	}
+	
+	private long readNextChangeId() throws SQLException {
+		try (SQLResult result = mysql.query("SELECT AUTO_INCREMENT FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'uuid_registry_changes'")) {
+			return result.next() ? result.getLong(1) : 0;
+		}
+	}
+	
+	/**
+	 * A transaction with a lower id can commit after one with a higher id, so the last ids before the position
+	 * are polled again and only the ones not applied yet are used.
+	 */
+	private void pollChanges() throws SQLException {
+		long cursor = Math.max(0, lastChangeId - TRAILING_CHANGES);
+		long newLastChangeId = lastChangeId;
+		boolean applied = false;
+		
+		while (true) {
+			List<Association> associations = new ArrayList<>();
+			int rows = 0;
+			
+			try (SQLResult result = mysql.preparedQuery("SELECT id, uuid, name FROM uuid_registry_changes WHERE id > ? ORDER BY id LIMIT " + BATCH_SIZE, cursor)) {
+				while (result.next()) {
+					rows++;
+					cursor = result.getLong(1);
+					if (appliedChangeIds.add(cursor)) {
+						newLastChangeId = Math.max(newLastChangeId, cursor);
+						associations.add(new Association(UUID.fromString(result.getString(2)), result.getString(3)));
+					}
+				}
+			}
+			
+			if (!associations.isEmpty()) {
+				UUIDRegistry.registerSharedAssociations(associations);
+				applied = true;
+			}
+			if (rows < BATCH_SIZE) {
+				break;
+			}
+		}
+		
+		if (applied) {
+			// The applied ids are saved too, otherwise after a restart the window would be applied again over newer local changes
+			long windowStart = newLastChangeId - TRAILING_CHANGES;
+			appliedChangeIds.removeIf(id -> id <= windowStart);
+			updatePosition(newLastChangeId);
+		}
+	}
+	
+	/**
+	 * The first line of the file is the last change id, the next ones are the ids applied in the trailing window.
+	 */
+	private long readPosition() {
+		if (!positionFile.exists()) {
+			return 0;
+		}
+		
+		try {
+			List<String> lines = Files.readAllLines(positionFile.toPath(), StandardCharsets.UTF_8);
+			if (lines.isEmpty()) {
+				return 0;
+			}
+			
+			long position = Long.parseLong(lines.get(0).trim());
+			for (int i = 1; i < lines.size(); i++) {
+				if (!lines.get(i).trim().isEmpty()) {
+					appliedChangeIds.add(Long.parseLong(lines.get(i).trim()));
+				}
+			}
+			return position;
+		} catch (IOException | NumberFormatException ex) {
+			logger.log(Level.WARNING, "Couldn't read the shared UUID registry position", ex);
+			appliedChangeIds.clear();
+			return 0;
+		}
+	}
+	
+	private void updatePosition(long changeId) {
+		lastChangeId = changeId;
+		
+		StringBuilder content = new StringBuilder(Long.toString(changeId));
+		for (long appliedChangeId : appliedChangeIds) {
+			content.append('\n').append(appliedChangeId);
+		}
+		
+		try {
+			Files.write(positionFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Couldn't save the shared UUID registry position", ex);
+		}
+	}
+	
+}
@@ -43,9 +43,5 @@ class UUIDData {
 	boolean isFresh(long now, long maxAge) {
 		return now - fetchTimestamp <= maxAge;
 	}
-
-	public boolean isValidProfile() {
-		return uuid != null;
-	}
 	
 }
@@ -29,43 +29,162 @@
 package wild.api.uuid;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.logging.Level;
 
+import com.gmail.filoghost.bungeecommons.BungeeCommonsPlugin;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Plugin;
-import net.md_5.bungee.util.CaseInsensitiveMap;
 import wild.api.chat.Chat;
+import wild.api.util.CIString;
 
 public class UUIDFetcher {
 	
-	private static final Map<String, UUIDData> UUID_CACHE = new CaseInsensitiveMap<>();
+	private static final Map<CIString, UUIDData> UUID_CACHE = new HashMap<>();
 	private static final int UUID_CACHE_MAX_SIZE = 500;
 	
 	private static final Map<UUID, NameData> NAME_CACHE = new HashMap<>();
 	private static final int NAME_CACHE_MAX_SIZE = 200;
 	
-	private static final long MAX_DATA_AGE = TimeUnit.MINUTES.toMillis(5);
+	private static final Map<UUID, PropertiesData> PROPERTIES_CACHE = new HashMap<>();
+	private static final int PROPERTIES_CACHE_MAX_SIZE = 200;
+	
+	private static final NegativeCache<CIString> UNKNOWN_NAMES = new NegativeCache<>(10000, TimeUnit.HOURS.toMillis(1));
+	private static final NegativeCache<UUID> UNKNOWN_UUIDS = new NegativeCache<>(2000, TimeUnit.HOURS.toMillis(1));
+	
 	private static final long API_LIMIT_REACHED_COOLDOWN = TimeUnit.MINUTES.toMillis(1);
+	private static final RateLimiter RATE_LIMITER = new RateLimiter(600, 10, TimeUnit.MINUTES); // Limit of Mojang API
+	private static final int INTERACTIVE_RESERVED_PERMITS = 120; // Background requests can't use the last 20% of the limit
+	
+	// Timeouts adapt to the recent latencies, between the minimum and the maximum
+	private static final LatencyTracker LATENCY_TRACKER = new LatencyTracker(128, 20);
+	private static final int MIN_CONNECT_TIMEOUT = 500;
+	private static final int MAX_CONNECT_TIMEOUT = 2000;
+	private static final int MIN_READ_TIMEOUT = 1000;
+	private static final int MAX_READ_TIMEOUT = 3000;
+	private static final CircuitBreaker CIRCUIT_BREAKER = new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(5), TimeUnit.SECONDS.toMillis(10));
+	
+	// Bounded amount of concurrent requests, shared by all the asynchronous operations. Queued interactive tasks run first
+	private static final ThreadLocal<Boolean> FETCHER_THREAD = ThreadLocal.withInitial(() -> false);
+	private static final ThreadPoolExecutor REQUEST_POOL = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+			new ThreadFactoryBuilder().setNameFormat("UUIDFetcher #%d").setDaemon(true).setThreadFactory(task -> new Thread(() -> {
+				FETCHER_THREAD.set(true);
+				task.run();
+			})).build());
+	private static final AtomicLong TASK_SEQUENCE = new AtomicLong();
+	static final Executor EXECUTOR = task -> execute(task, RequestPriority.INTERACTIVE);
+	static final Executor BACKGROUND_EXECUTOR = task -> execute(task, RequestPriority.BACKGROUND);
+	
+	// Requests in progress, so that concurrent lookups of the same key share the same request
+	private static final Map<CIString, SharedRequest<UUID>> UUID_REQUESTS = new ConcurrentHashMap<>();
+	private static final Map<UUID, SharedRequest<String>> NAME_REQUESTS = new ConcurrentHashMap<>();
+	private static final Map<UUID, SharedRequest<List<ProfileProperty>>> PROPERTIES_REQUESTS = new ConcurrentHashMap<>();
 	
 	private static long lastAPILimitReached;
 	
+	// Lookups try in order: online players, cache, registry, shared storage and finally the API
+	private static volatile long cacheMaxAge = TimeUnit.MINUTES.toMillis(5);
+	private static volatile long registryMaxAge = TimeUnit.DAYS.toMillis(7);
+	private static volatile long sharedStorageMaxAge = TimeUnit.DAYS.toMillis(7);
+	
+	private static volatile ResolutionMode resolutionMode; // If null, depends on the online mode of the proxy
+	
+	// The caches are saved to a file, and loaded back before the first lookup
+	private static final Object CACHE_FILE_LOCK = new Object();
+	private static File cacheFile;
+	private static volatile boolean cacheLoaded = true; // Nothing to load until the persistent cache is enabled
+	private static volatile boolean cacheChanged;
+	
+	
+	/**
+	 * Sets how UUIDs are resolved, by default ONLINE or OFFLINE depending on the online mode of the proxy.
+	 */
+	public static void setResolutionMode(ResolutionMode mode) {
+		resolutionMode = mode;
+	}
+	
+	public static ResolutionMode getResolutionMode() {
+		ResolutionMode mode = resolutionMode;
+		if (mode != null) {
+			return mode;
+		}
+		return ProxyServer.getInstance().getConfig().isOnlineMode() ? ResolutionMode.ONLINE : ResolutionMode.OFFLINE;
+	}
+	
+	/**
+	 * Returns the UUID that the server assigns to the name in offline mode.
+	 */
+	public static UUID getOfflineUUID(String playerName) {
+		return UUID.nameUUIDFromBytes(("OfflinePlayer:" + playerName).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Sets how long the results of the API are cached in memory (5 minutes by default).
+	 */
+	public static void setCacheMaxAge(long maxAge, TimeUnit unit) {
+		if (maxAge < 0) {
+			throw new IllegalArgumentException("Negative max age");
+		}
+		cacheMaxAge = unit.toMillis(maxAge);
+	}
+	
+	/**
+	 * Sets the maximum age of the names in the UUID registry that lookups can use (7 days by default).
+	 * Only the players who logged in within that time are used, because the other names may have changed.
+	 * Zero disables the registry for lookups, a negative value uses any name.
+	 */
+	public static void setRegistryMaxAge(long maxAge, TimeUnit unit) {
+		registryMaxAge = maxAge < 0 ? -1 : unit.toMillis(maxAge);
+	}
+	
+	/**
+	 * Sets the maximum age of the names in the shared storage of the UUID registry that lookups can use (7 days by default),
+	 * based on when they were written. Zero disables the shared storage for lookups, a negative value uses any name.
+	 */
+	public static void setSharedStorageMaxAge(long maxAge, TimeUnit unit) {
+		sharedStorageMaxAge = maxAge < 0 ? -1 : unit.toMillis(maxAge);
+	}
+	
+	
 	public static void fetchUUIDAsync(Plugin plugin, String playerName, Consumer<UUID> uuidConsumer, CommandSender exceptionHandler) {
 		fetchUUIDAsync(plugin, playerName, uuidConsumer, error -> {
-			if (error instanceof APILimitException) {
+			if (error instanceof APIUnavailableException) {
+				Chat.tell(exceptionHandler, "Impossibile ottenere l'ID di " + playerName + ": i server Mojang non rispondono, riprova più tardi.", ChatColor.RED);
+			} else if (error instanceof APILimitException) {
 				Chat.tell(exceptionHandler, "Impossibile ottenere l'ID di " + playerName + ": limite richieste raggiunto, riprova più tardi.", ChatColor.RED);
 			} else if (error instanceof ProfileNotFoundException) {
 				Chat.tell(exceptionHandler, playerName + " non è un nickname Premium attualmente esistente.", ChatColor.RED);
@@ -77,40 +196,272 @@ public class UUIDFetcher {
 	}
 	
 	public static void fetchUUIDAsync(Plugin plugin, String playerName, Consumer<UUID> uuidConsumer, UUIDExceptionHandler exceptionHandler) {
-		ProxyServer.getInstance().getScheduler().runAsync(plugin, () -> {
-			try {
-				UUID uuid = fetchUUID(playerName);
-				if (uuidConsumer != null) {
-					uuidConsumer.accept(uuid);
+		completeAsync(plugin, fetchUUIDFuture(playerName), uuidConsumer, exceptionHandler);
+	}
+	
+	/**
+	 * Fetches the properties of the profile from the session server, like the skin textures.
+	 */
+	public static void fetchProfilePropertiesAsync(Plugin plugin, UUID uuid, Consumer<List<ProfileProperty>> propertiesConsumer, UUIDExceptionHandler exceptionHandler) {
+		completeAsync(plugin, fetchProfilePropertiesFuture(uuid), propertiesConsumer, exceptionHandler);
+	}
+	
+	private static <T> void completeAsync(Plugin plugin, CompletableFuture<T> future, Consumer<T> consumer, UUIDExceptionHandler exceptionHandler) {
+		future.whenComplete((result, error) -> {
+			// The callbacks could block, so they don't run in the threads of the fetcher
+			ProxyServer.getInstance().getScheduler().runAsync(plugin, () -> {
+				if (error == null) {
+					try {
+						if (consumer != null) {
+							consumer.accept(result);
+						}
+					} catch (Throwable t) {
+						if (exceptionHandler != null) {
+							exceptionHandler.handle(t);
+						}
+					}
+				} else if (exceptionHandler != null) {
+					exceptionHandler.handle(error);
 				}
+			});
+		});
+	}
+	
+	/**
+	 * The future is completed in a thread of the fetcher, avoid blocking operations in the dependent stages.
+	 * It fails with the same exceptions of fetchUUID(), and it's shared with the concurrent lookups of the same name.
+	 */
+	public static CompletableFuture<UUID> fetchUUIDFuture(String playerName) {
+		return fetchUUIDFuture(playerName, RequestPriority.INTERACTIVE);
+	}
+	
+	public static CompletableFuture<UUID> fetchUUIDFuture(String playerName, RequestPriority priority) {
+		if (getResolutionMode() == ResolutionMode.OFFLINE) {
+			return CompletableFuture.completedFuture(getOfflineUUID(playerName));
+		}
+		
+		CIString ciName = new CIString(playerName);
+		UUID localUUID = findLocalUUID(playerName, ciName, System.currentTimeMillis());
+		if (localUUID != null) {
+			return CompletableFuture.completedFuture(localUUID);
+		}
+		
+		return sharedRequest(UUID_REQUESTS, ciName, priority, runPriority -> fetchUUID(playerName, runPriority));
+	}
+	
+	/**
+	 * Same as fetchUUIDFuture(), but for the name of a UUID.
+	 */
+	public static CompletableFuture<String> fetchNameFuture(UUID uuid) {
+		return fetchNameFuture(uuid, RequestPriority.INTERACTIVE);
+	}
+	
+	public static CompletableFuture<String> fetchNameFuture(UUID uuid, RequestPriority priority) {
+		String localName = findLocalName(uuid, System.currentTimeMillis());
+		if (localName != null) {
+			return CompletableFuture.completedFuture(localName);
+		}
+		
+		if (!isPremiumResolvable(uuid)) {
+			CompletableFuture<String> future = new CompletableFuture<>();
+			future.completeExceptionally(new ProfileNotFoundException());
+			return future;
+		}
+		
+		return sharedRequest(NAME_REQUESTS, uuid, priority, runPriority -> fetchName(uuid, runPriority));
+	}
+	
+	/**
+	 * Same as fetchUUIDFuture(), but for the properties of a profile.
+	 */
+	public static CompletableFuture<List<ProfileProperty>> fetchProfilePropertiesFuture(UUID uuid) {
+		return fetchProfilePropertiesFuture(uuid, RequestPriority.INTERACTIVE);
+	}
+	
+	public static CompletableFuture<List<ProfileProperty>> fetchProfilePropertiesFuture(UUID uuid, RequestPriority priority) {
+		ensureCacheLoaded();
+		PropertiesData cachedPropertiesData = getPropertiesFromCache(uuid);
+		if (cachedPropertiesData != null && cachedPropertiesData.isFresh(System.currentTimeMillis(), cacheMaxAge)) {
+			return CompletableFuture.completedFuture(cachedPropertiesData.getProperties());
+		}
+		
+		return sharedRequest(PROPERTIES_REQUESTS, uuid, priority, runPriority -> fetchProfileProperties(uuid, runPriority));
+	}
+	
+	/**
+	 * Looks up the names in parallel. The names that couldn't be resolved, for any reason, are missing from the result.
+	 */
+	public static CompletableFuture<Map<String, UUID>> fetchUUIDsFuture(Collection<String> playerNames) {
+		return fetchUUIDsFuture(playerNames, RequestPriority.INTERACTIVE);
+	}
+	
+	public static CompletableFuture<Map<String, UUID>> fetchUUIDsFuture(Collection<String> playerNames, RequestPriority priority) {
+		Map<String, CompletableFuture<UUID>> futures = new LinkedHashMap<>();
+		for (String playerName : playerNames) {
+			futures.put(playerName, fetchUUIDFuture(playerName, priority));
+		}
+		return collectSuccessful(futures);
+	}
+	
+	/**
+	 * Looks up the UUIDs in parallel. The UUIDs that couldn't be resolved, for any reason, are missing from the result.
+	 */
+	public static CompletableFuture<Map<UUID, String>> fetchNamesFuture(Collection<UUID> uuids) {
+		return fetchNamesFuture(uuids, RequestPriority.INTERACTIVE);
+	}
+	
+	public static CompletableFuture<Map<UUID, String>> fetchNamesFuture(Collection<UUID> uuids, RequestPriority priority) {
+		Map<UUID, CompletableFuture<String>> futures = new LinkedHashMap<>();
+		for (UUID uuid : uuids) {
+			futures.put(uuid, fetchNameFuture(uuid, priority));
+		}
+		return collectSuccessful(futures);
+	}
+	
+	/**
+	 * Each caller gets its own copy of the shared future, so that completing or cancelling it doesn't affect the others.
+	 * A caller with a higher priority promotes the shared request if it's still queued, otherwise it starts a new one:
+	 * it must not wait behind the queued background tasks, nor be limited to the permits of the background requests.
+	 */
+	private static <K, V> CompletableFuture<V> sharedRequest(Map<K, SharedRequest<V>> requests, K key, RequestPriority priority, Request<V> request) {
+		SharedRequest<V> sharedRequest = new SharedRequest<>(request, priority);
+		SharedRequest<V> existingRequest = requests.putIfAbsent(key, sharedRequest);
+		
+		if (existingRequest != null) {
+			if (existingRequest.promote(priority)) {
+				submit(requests, key, existingRequest, priority); // The first of the two tasks to run executes the request
+				return copyOf(existingRequest.future);
+			}
+			if (!existingRequest.isStartedWithLowerPriority(priority)) {
+				return copyOf(existingRequest.future);
+			}
+			if (!requests.replace(key, existingRequest, sharedRequest)) {
+				return sharedRequest(requests, key, priority, request); // Completed or replaced meanwhile
+			}
+		}
+		
+		submit(requests, key, sharedRequest, priority);
+		return copyOf(sharedRequest.future);
+	}
+	
+	private static <K, V> void submit(Map<K, SharedRequest<V>> requests, K key, SharedRequest<V> sharedRequest, RequestPriority priority) {
+		execute(() -> {
+			RequestPriority runPriority = sharedRequest.start();
+			if (runPriority == null) {
+				return; // Already executed by the other task
+			}
+			
+			try {
+				sharedRequest.future.complete(sharedRequest.request.execute(runPriority));
 			} catch (Throwable t) {
-				if (exceptionHandler != null) {
-					exceptionHandler.handle(t);
-				}
+				sharedRequest.future.completeExceptionally(t);
+			} finally {
+				requests.remove(key, sharedRequest);
 			}
+		}, priority);
+	}
+	
+	/**
+	 * Unlike thenApply(), the exceptions are not wrapped in CompletionException.
+	 */
+	private static <V> CompletableFuture<V> copyOf(CompletableFuture<V> future) {
+		CompletableFuture<V> copy = new CompletableFuture<>();
+		future.whenComplete((value, error) -> {
+			if (error != null) {
+				copy.completeExceptionally(error);
+			} else {
+				copy.complete(value);
+			}
+		});
+		return copy;
+	}
+	
+	/**
+	 * Returns true if the current thread runs the requests, it must never wait for other requests.
+	 */
+	static boolean isFetcherThread() {
+		return FETCHER_THREAD.get();
+	}
+	
+	private static void execute(Runnable task, RequestPriority priority) {
+		REQUEST_POOL.execute(new PrioritizedTask(priority, TASK_SEQUENCE.getAndIncrement(), task));
+	}
+	
+	private static <K, V> CompletableFuture<Map<K, V>> collectSuccessful(Map<K, CompletableFuture<V>> futures) {
+		CompletableFuture<?>[] completions = futures.values().stream().map(future -> future.handle((value, error) -> null)).toArray(CompletableFuture<?>[]::new);
+		
+		return CompletableFuture.allOf(completions).thenApply(v -> {
+			Map<K, V> results = new LinkedHashMap<>();
+			futures.forEach((key, future) -> {
+				if (!future.isCompletedExceptionally()) {
+					results.put(key, future.join());
+				}
+			});
+			return results;
 		});
 	}
 	
-	public static UUID fetchUUID(String playerName) throws APILimitException, ProfileNotFoundException, Throwable {		
+	public static UUID fetchUUID(String playerName) throws APILimitException, ProfileNotFoundException, Throwable {
+		return fetchUUID(playerName, RequestPriority.INTERACTIVE);
+	}
+	
+	public static UUID fetchUUID(String playerName, RequestPriority priority) throws APILimitException, ProfileNotFoundException, Throwable {
+		switch (getResolutionMode()) {
+			case OFFLINE:
+				return getOfflineUUID(playerName);
+			case HYBRID:
+				try {
+					return fetchPremiumUUID(playerName, priority);
+				} catch (ProfileNotFoundException e) {
+					return getOfflineUUID(playerName);
+				}
+			default:
+				return fetchPremiumUUID(playerName, priority);
+		}
+	}
+	
+	private static UUID fetchPremiumUUID(String playerName, RequestPriority priority) throws APILimitException, ProfileNotFoundException, Throwable {
 		long now = System.currentTimeMillis();
+		CIString ciName = new CIString(playerName);
+		
+		UUID localUUID = findLocalUUID(playerName, ciName, now);
+		if (localUUID != null) {
+			return localUUID;
+		}
+		
+		// Checked before the remote tiers, so that known invalid names never reach the network
+		if (UNKNOWN_NAMES.contains(ciName, now)) {
+			throw new ProfileNotFoundException();
+		}
+		
+		SharedRegistryStorage sharedStorage = UUIDRegistry.getSharedStorage();
+		if (sharedStorage != null && sharedStorageMaxAge != 0) {
+			UUID sharedUUID = sharedStorage.findUUID(playerName, sharedStorageMaxAge);
+			if (sharedUUID != null) {
+				putUUIDInCache(ciName, new UUIDData(sharedUUID, now), now);
+				return sharedUUID;
+			}
+		}
 		
 		if (now - lastAPILimitReached < API_LIMIT_REACHED_COOLDOWN) {
 			throw new APILimitException();
 		}
 		
-		UUIDData cachedUUIDData = getUUIDFromCache(playerName);
-		
-		if (cachedUUIDData != null && cachedUUIDData.isFresh(now, MAX_DATA_AGE)) {
-			if (cachedUUIDData.isValidProfile()) {
-				return cachedUUIDData.getUuid();
-			} else {
-				throw new ProfileNotFoundException();
+		if (!CIRCUIT_BREAKER.allowRequest()) {
+			UUID staleUUID = findStaleUUID(playerName, ciName);
+			if (staleUUID != null) {
+				return staleUUID;
 			}
+			throw new APIUnavailableException();
+		}
+		
+		if (!RATE_LIMITER.tryAcquire(reservedPermits(priority))) {
+			throw new APILimitException();
 		}
 		
 		try {
 			UUID uuid = getFreshUUID(playerName);
-			putUUIDInCache(playerName, new UUIDData(uuid, now), now);
+			putUUIDInCache(ciName, new UUIDData(uuid, now), now);
 			return uuid;
 			
 		} catch (APILimitException e) {
@@ -118,26 +469,68 @@ public class UUIDFetcher {
 			throw e;
 			
 		} catch (ProfileNotFoundException e) {
-			putUUIDInCache(playerName, new UUIDData(null, now), now);
+			UNKNOWN_NAMES.add(ciName, now);
+			cacheChanged = true;
 			throw e;
 		}
 	}
 	
 	public static String fetchName(UUID uuid) throws APILimitException, ProfileNotFoundException, Throwable {
+		return fetchName(uuid, RequestPriority.INTERACTIVE);
+	}
+	
+	public static String fetchName(UUID uuid, RequestPriority priority) throws APILimitException, ProfileNotFoundException, Throwable {
 		long now = System.currentTimeMillis();
 		
+		String localName = findLocalName(uuid, now);
+		if (localName != null) {
+			return localName;
+		}
+		
+		SharedRegistryStorage sharedStorage = UUIDRegistry.getSharedStorage();
+		if (sharedStorage != null && sharedStorageMaxAge != 0 && !UNKNOWN_UUIDS.contains(uuid, now)) {
+			String sharedName = sharedStorage.findName(uuid, sharedStorageMaxAge);
+			if (sharedName != null) {
+				putNameInCache(uuid, new NameData(sharedName, now), now);
+				return sharedName;
+			}
+		}
+		
+		try {
+			return fetchNameFromAPI(uuid, now, priority);
+		} catch (APIUnavailableException e) {
+			String staleName = findStaleName(uuid);
+			if (staleName != null) {
+				return staleName;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Skips the registry and its shared storage, for the repairs of the registry itself (in background).
+	 */
+	static String fetchNameFromAPI(UUID uuid) throws APILimitException, ProfileNotFoundException, Throwable {
+		return fetchNameFromAPI(uuid, System.currentTimeMillis(), RequestPriority.BACKGROUND);
+	}
+	
+	private static String fetchNameFromAPI(UUID uuid, long now, RequestPriority priority) throws APILimitException, ProfileNotFoundException, Throwable {
+		ensureCacheLoaded();
+		
+		if (UNKNOWN_UUIDS.contains(uuid, now) || !isPremiumResolvable(uuid)) {
+			throw new ProfileNotFoundException();
+		}
+		
 		if (now - lastAPILimitReached < API_LIMIT_REACHED_COOLDOWN) {
 			throw new APILimitException();
 		}
 		
-		NameData cachedNameData = getNameFromCache(uuid);
+		if (!CIRCUIT_BREAKER.allowRequest()) {
+			throw new APIUnavailableException();
+		}
 		
-		if (cachedNameData != null && cachedNameData.isFresh(now, MAX_DATA_AGE)) {
-			if (cachedNameData.isValidProfile()) {
-				return cachedNameData.getName();
-			} else {
-				throw new ProfileNotFoundException();
-			}
+		if (!RATE_LIMITER.tryAcquire(reservedPermits(priority))) {
+			throw new APILimitException();
 		}
 		
 		try {
@@ -150,22 +543,152 @@ public class UUIDFetcher {
 			throw e;
 			
 		} catch (ProfileNotFoundException e) {
-			putNameInCache(uuid, new NameData(null, now), now);
+			UNKNOWN_UUIDS.add(uuid, now);
+			cacheChanged = true;
 			throw e;
 		}
 	}
 	
-	private static UUIDData getUUIDFromCache(String playerName) {
+	public static List<ProfileProperty> fetchProfileProperties(UUID uuid) throws APILimitException, ProfileNotFoundException, Throwable {
+		return fetchProfileProperties(uuid, RequestPriority.INTERACTIVE);
+	}
+	
+	/**
+	 * Returns the properties of the profile from the session server (unmodifiable), like the skin textures.
+	 * They share the limits and the caches of the other requests.
+	 */
+	public static List<ProfileProperty> fetchProfileProperties(UUID uuid, RequestPriority priority) throws APILimitException, ProfileNotFoundException, Throwable {
+		long now = System.currentTimeMillis();
+		ensureCacheLoaded();
+		
+		PropertiesData cachedPropertiesData = getPropertiesFromCache(uuid);
+		if (cachedPropertiesData != null && cachedPropertiesData.isFresh(now, cacheMaxAge)) {
+			return cachedPropertiesData.getProperties();
+		}
+		
+		if (UNKNOWN_UUIDS.contains(uuid, now) || !isPremiumResolvable(uuid)) {
+			throw new ProfileNotFoundException();
+		}
+		
+		if (now - lastAPILimitReached < API_LIMIT_REACHED_COOLDOWN) {
+			throw new APILimitException();
+		}
+		
+		if (!CIRCUIT_BREAKER.allowRequest()) {
+			if (cachedPropertiesData != null) {
+				return cachedPropertiesData.getProperties();
+			}
+			throw new APIUnavailableException();
+		}
+		
+		if (!RATE_LIMITER.tryAcquire(reservedPermits(priority))) {
+			throw new APILimitException();
+		}
+		
+		try {
+			List<ProfileProperty> properties = getFreshProperties(uuid, now);
+			putPropertiesInCache(uuid, new PropertiesData(properties, now), now);
+			return properties;
+			
+		} catch (APILimitException e) {
+			lastAPILimitReached = now;
+			throw e;
+			
+		} catch (ProfileNotFoundException e) {
+			UNKNOWN_UUIDS.add(uuid, now);
+			cacheChanged = true;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns how long to wait before the API can be used again with the given priority, after an APILimitException.
+	 */
+	static long getMillisUntilAPIAvailable(RequestPriority priority) {
+		long cooldown = lastAPILimitReached + API_LIMIT_REACHED_COOLDOWN - System.currentTimeMillis();
+		cooldown = Math.max(cooldown, CIRCUIT_BREAKER.getMillisUntilProbe());
+		return Math.max(cooldown, RATE_LIMITER.getMillisUntilAvailable(reservedPermits(priority)));
+	}
+	
+	private static int reservedPermits(RequestPriority priority) {
+		return priority == RequestPriority.BACKGROUND ? INTERACTIVE_RESERVED_PERMITS : 0;
+	}
+	
+	/**
+	 * Offline UUIDs (version 3, name based) don't exist for Mojang API, as any UUID in offline mode.
+	 */
+	private static boolean isPremiumResolvable(UUID uuid) {
+		return uuid.version() != 3 && getResolutionMode() != ResolutionMode.OFFLINE;
+	}
+	
+	/**
+	 * Lookup tiers that don't block: online players, cache and registry.
+	 */
+	private static UUID findLocalUUID(String playerName, CIString ciName, long now) {
+		ensureCacheLoaded();
+		
+		ProxiedPlayer onlinePlayer = ProxyServer.getInstance().getPlayer(playerName);
+		if (onlinePlayer != null) {
+			return onlinePlayer.getUniqueId();
+		}
+		
+		UUIDData cachedUUIDData = getUUIDFromCache(ciName);
+		if (cachedUUIDData != null && cachedUUIDData.isFresh(now, cacheMaxAge)) {
+			return cachedUUIDData.getUuid();
+		}
+		
+		return registryMaxAge != 0 ? UUIDRegistry.getUUIDSeenWithin(playerName, registryMaxAge) : null;
+	}
+	
+	private static String findLocalName(UUID uuid, long now) {
+		ensureCacheLoaded();
+		
+		ProxiedPlayer onlinePlayer = ProxyServer.getInstance().getPlayer(uuid);
+		if (onlinePlayer != null) {
+			return onlinePlayer.getName();
+		}
+		
+		NameData cachedNameData = getNameFromCache(uuid);
+		if (cachedNameData != null && cachedNameData.isFresh(now, cacheMaxAge)) {
+			return cachedNameData.getName();
+		}
+		
+		return registryMaxAge != 0 ? UUIDRegistry.getNameSeenWithin(uuid, registryMaxAge) : null;
+	}
+	
+	/**
+	 * Answers of any age, used while the API is unavailable.
+	 */
+	private static UUID findStaleUUID(String playerName, CIString ciName) {
+		UUIDData cachedUUIDData = getUUIDFromCache(ciName);
+		if (cachedUUIDData != null) {
+			return cachedUUIDData.getUuid();
+		}
+		
+		return registryMaxAge != 0 ? UUIDRegistry.getUUIDSeenWithin(playerName, -1) : null;
+	}
+	
+	private static String findStaleName(UUID uuid) {
+		NameData cachedNameData = getNameFromCache(uuid);
+		if (cachedNameData != null) {
+			return cachedNameData.getName();
+		}
+		
+		return registryMaxAge != 0 ? UUIDRegistry.getNameSeenWithin(uuid, -1) : null;
+	}
+	
+	private static UUIDData getUUIDFromCache(CIString playerName) {
 		synchronized (UUID_CACHE) {
 			return UUID_CACHE.get(playerName);
 		}
 	}
 	
-	private static void putUUIDInCache(String playerName, UUIDData uuidData, long now) {
+	private static void putUUIDInCache(CIString playerName, UUIDData uuidData, long now) {
 		synchronized (UUID_CACHE) {
 			UUID_CACHE.put(playerName, uuidData);
+			cacheChanged = true;
 			if (UUID_CACHE.size() > UUID_CACHE_MAX_SIZE) {
-				UUID_CACHE.values().removeIf(u -> !u.isFresh(now, MAX_DATA_AGE));
+				UUID_CACHE.values().removeIf(u -> !u.isFresh(now, cacheMaxAge));
 			}
 		}
 	}
@@ -179,8 +702,97 @@ public class UUIDFetcher {
 	private static void putNameInCache(UUID uuid, NameData nameData, long now) {
 		synchronized (NAME_CACHE) {
 			NAME_CACHE.put(uuid, nameData);
+			cacheChanged = true;
 			if (NAME_CACHE.size() > NAME_CACHE_MAX_SIZE) {
-				NAME_CACHE.values().removeIf(n -> !n.isFresh(now, MAX_DATA_AGE));
+				NAME_CACHE.values().removeIf(n -> !n.isFresh(now, cacheMaxAge));
+			}
+		}
+	}
+	
+	/**
+	 * Saves the caches to a file periodically and on shutdown, so that a restart doesn't repeat the recent requests.
+	 */
+	static void initPersistentCache() {
+		synchronized (CACHE_FILE_LOCK) {
+			cacheFile = new File(BungeeCommonsPlugin.instance.getDataFolder(), "uuid-fetcher-cache.dat");
+			cacheLoaded = false;
+		}
+		
+		EXECUTOR.execute(UUIDFetcher::ensureCacheLoaded); // Usually done before the first lookup
+		ProxyServer.getInstance().getScheduler().schedule(BungeeCommonsPlugin.instance, () -> {
+			if (cacheChanged) {
+				saveCache();
+			}
+		}, 5, 5, TimeUnit.MINUTES);
+	}
+	
+	static void saveCache() {
+		synchronized (CACHE_FILE_LOCK) {
+			if (cacheFile == null) {
+				return;
+			}
+			ensureCacheLoaded(); // Otherwise the entries not loaded yet would be lost
+			
+			Map<CIString, UUIDData> uuidCache;
+			Map<UUID, NameData> nameCache;
+			synchronized (UUID_CACHE) {
+				uuidCache = new HashMap<>(UUID_CACHE);
+			}
+			synchronized (NAME_CACHE) {
+				nameCache = new HashMap<>(NAME_CACHE);
+			}
+			cacheChanged = false;
+			
+			try {
+				FetcherCacheFile.write(cacheFile, uuidCache, nameCache, UNKNOWN_NAMES, UNKNOWN_UUIDS, System.currentTimeMillis());
+			} catch (IOException ex) {
+				BungeeCommonsPlugin.instance.getLogger().log(Level.WARNING, "Couldn't save the UUID fetcher cache", ex);
+			}
+		}
+	}
+	
+	private static void ensureCacheLoaded() {
+		if (cacheLoaded) {
+			return;
+		}
+		
+		synchronized (CACHE_FILE_LOCK) {
+			if (cacheLoaded) {
+				return;
+			}
+			
+			if (cacheFile.exists()) {
+				Map<CIString, UUIDData> uuidCache = new HashMap<>();
+				Map<UUID, NameData> nameCache = new HashMap<>();
+				try {
+					FetcherCacheFile.read(cacheFile, uuidCache, nameCache, UNKNOWN_NAMES, UNKNOWN_UUIDS, System.currentTimeMillis(), cacheMaxAge);
+				} catch (IOException ex) {
+					BungeeCommonsPlugin.instance.getLogger().log(Level.WARNING, "Couldn't load the UUID fetcher cache", ex);
+				}
+				
+				// Entries added meanwhile are more recent
+				synchronized (UUID_CACHE) {
+					uuidCache.forEach(UUID_CACHE::putIfAbsent);
+				}
+				synchronized (NAME_CACHE) {
+					nameCache.forEach(NAME_CACHE::putIfAbsent);
+				}
+			}
+			cacheLoaded = true;
+		}
+	}
+	
+	private static PropertiesData getPropertiesFromCache(UUID uuid) {
+		synchronized (PROPERTIES_CACHE) {
+			return PROPERTIES_CACHE.get(uuid);
+		}
+	}
+	
+	private static void putPropertiesInCache(UUID uuid, PropertiesData propertiesData, long now) {
+		synchronized (PROPERTIES_CACHE) {
+			PROPERTIES_CACHE.put(uuid, propertiesData);
+			if (PROPERTIES_CACHE.size() > PROPERTIES_CACHE_MAX_SIZE) {
+				PROPERTIES_CACHE.values().removeIf(p -> !p.isFresh(now, cacheMaxAge));
 			}
 		}
 	}
@@ -191,15 +803,136 @@ public class UUIDFetcher {
 	}
 	
 	private static String getFreshName(UUID uuid) throws APILimitException, ProfileNotFoundException, Throwable {
-		JsonArray response = (JsonArray) apiRequest("https://api.mojang.com/user/profiles/" + uuid.toString().replace("-", "") + "/names");
-		JsonObject lastName = (JsonObject) response.get(response.size() - 1);
-		return lastName.get("name").getAsString();
+		JsonObject response = (JsonObject) apiRequest("https://sessionserver.mojang.com/session/minecraft/profile/" + uuid.toString().replace("-", ""));
+		return response.get("name").getAsString();
+	}
+	
+	@AllArgsConstructor
+	private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+		
+		private final RequestPriority priority;
+		private final long sequence; // FIFO order with the same priority
+		private final Runnable task;
+		
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask other) {
+			int comparison = priority.compareTo(other.priority);
+			return comparison != 0 ? comparison : Long.compare(sequence, other.sequence);
+		}
+		
+	}
+	
+	private static List<ProfileProperty> getFreshProperties(UUID uuid, long now) throws APILimitException, ProfileNotFoundException, Throwable {
+		JsonObject response = (JsonObject) apiRequest("https://sessionserver.mojang.com/session/minecraft/profile/" + uuid.toString().replace("-", "") + "?unsigned=false");
+		putNameInCache(uuid, new NameData(response.get("name").getAsString(), now), now); // Also contains the current name
+		
+		List<ProfileProperty> properties = new ArrayList<>();
+		JsonArray jsonProperties = response.getAsJsonArray("properties");
+		if (jsonProperties != null) {
+			for (JsonElement jsonProperty : jsonProperties) {
+				JsonObject property = jsonProperty.getAsJsonObject();
+				JsonElement signature = property.get("signature");
+				properties.add(new ProfileProperty(property.get("name").getAsString(), property.get("value").getAsString(), signature != null ? signature.getAsString() : null));
+			}
+		}
+		return Collections.unmodifiableList(properties);
 	}
 	
+	private static interface Request<V> {
+		
+		public V execute(RequestPriority priority) throws Throwable;
+		
+	}
+	
+	/**
+	 * A request shared by the concurrent lookups of the same key. It runs with the highest priority requested before it started.
+	 */
+	@RequiredArgsConstructor
+	private static class SharedRequest<V> {
+		
+		private final Request<V> request;
+		private final CompletableFuture<V> future = new CompletableFuture<>();
+		@NonNull private RequestPriority priority;
+		private boolean started;
+		
+		/**
+		 * Returns true if the request was still queued with a lower priority, that has been raised.
+		 */
+		private synchronized boolean promote(RequestPriority newPriority) {
+			if (started || newPriority.compareTo(priority) >= 0) {
+				return false;
+			}
+			priority = newPriority;
+			return true;
+		}
+		
+		private synchronized boolean isStartedWithLowerPriority(RequestPriority otherPriority) {
+			return started && otherPriority.compareTo(priority) < 0;
+		}
+		
+		/**
+		 * Returns the priority to run with, or null if the request was already started by another task.
+		 */
+		private synchronized RequestPriority start() {
+			if (started) {
+				return null;
+			}
+			started = true;
+			return priority;
+		}
+		
+	}
+	
+	/**
+	 * Failures that are not answers of the API (timeouts, network errors, unexpected status codes) open the circuit breaker.
+	 * The URLs always look up a single profile, so 404 means that the profile doesn't exist.
+	 */
 	private static JsonElement apiRequest(String url) throws APILimitException, ProfileNotFoundException, Throwable {
+		long start = System.nanoTime();
+		try {
+			JsonElement response = sendRequest(url);
+			recordAnswer(start);
+			return response;
+			
+		} catch (ProfileNotFoundException | APILimitException e) {
+			recordAnswer(start);
+			throw e;
+			
+		} catch (Throwable t) {
+			if (t instanceof SocketTimeoutException) {
+				// Otherwise the percentile would only reflect the fast requests, and the timeouts would never grow when the API slows down
+				LATENCY_TRACKER.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			CIRCUIT_BREAKER.recordFailure();
+			throw t;
+		}
+	}
+	
+	private static void recordAnswer(long start) {
+		LATENCY_TRACKER.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		CIRCUIT_BREAKER.recordSuccess();
+	}
+	
+	/**
+	 * A few times the 99th percentile of the recent latencies, or the maximum while there are not enough samples.
+	 */
+	private static int adaptiveTimeout(int minTimeout, int maxTimeout) {
+		long percentile = LATENCY_TRACKER.getPercentile(0.99);
+		if (percentile < 0) {
+			return maxTimeout;
+		}
+		return (int) Math.max(minTimeout, Math.min(maxTimeout, percentile * 3));
+	}
+	
+	private static JsonElement sendRequest(String url) throws APILimitException, ProfileNotFoundException, Throwable {
 		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-		conn.setReadTimeout(3000);
-		conn.setConnectTimeout(2000);
+		conn.setReadTimeout(adaptiveTimeout(MIN_READ_TIMEOUT, MAX_READ_TIMEOUT));
+		conn.setConnectTimeout(adaptiveTimeout(MIN_CONNECT_TIMEOUT, MAX_CONNECT_TIMEOUT));
 		conn.setRequestMethod("GET");
 
 		int statusCode = conn.getResponseCode();
@@ -208,7 +941,7 @@ public class UUIDFetcher {
 			try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
 				return new JsonParser().parse(in);
 			}
-		} else if (statusCode == 204) {
+		} else if (statusCode == 204 || statusCode == 404) {
 			throw new ProfileNotFoundException();
 			
 		} else if (statusCode == 429) {
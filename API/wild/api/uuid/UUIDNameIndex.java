@@ -0,0 +1,851 @@
+/*
+ * Copyright (c) 2020, Wild Adventure
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ * 4. Redistribution of this software in source or binary forms shall be free
+ *    of all charges or fees to the recipient of this software.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package wild.api.uuid;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+import wild.api.util.CIString;
+
+/**
+ * Bidirectional index between UUIDs and case insensitive names, made of primitive arrays instead of objects.
+ * 
+ * Entries are stored in parallel arrays (the UUID as two longs), while names are stored as length-prefixed
+ * UTF-8 in a shared byte arena. Two open addressing tables with linear probing map UUIDs and names to entries.
+ * Prefix searches use a sorted copy of the names, rebuilt periodically, plus the list of names changed since then.
+ * 
+ * Inactive entries can be moved to a {@link ColdRegistryIndex} on disk, used when an entry is not in memory.
+ * Its records are masked when the UUID or the name is put again in memory, so that each is in a single tier.
+ * Prefix searches only include the entries in memory.
+ * 
+ * Not thread safe, changes must be synchronized externally. Lookups may run during a change only as optimistic reads
+ * that are validated afterwards: on an inconsistent state they never loop forever, but may return wrong results or throw.
+ */
+class UUIDNameIndex {
+	
+	private static final int NO_ENTRY = -1;
+	private static final int FREE_ENTRY = -1;
+	private static final float MAX_LOAD_FACTOR = 0.7f;
+	private static final int MAX_NAME_LENGTH = 255;
+	private static final int MAX_PREFIX_CANDIDATES = 2000; // Prefix searches run on each keystroke of tab completions
+	
+	// Entries, identified by their position in the arrays
+	private long[] mostSigBits;
+	private long[] leastSigBits;
+	private int[] nameOffsets; // FREE_ENTRY for removed entries
+	private int[] nameHashes;
+	private int[] lastSeen; // Minutes since the epoch of the last login, 0 if unknown
+	private int entriesEnd; // Positions after this were never used
+	private int[] freeEntries;
+	private int freeEntriesCount;
+	private int size;
+	
+	// Slots contain the entry + 1, so that 0 is an empty slot
+	private int[] uuidTable;
+	private int[] nameTable;
+	
+	private byte[] arena;
+	private int arenaSize;
+	private int arenaGarbage;
+	
+	private NamePrefixIndex prefixIndex = NamePrefixIndex.EMPTY;
+	private int[] unsortedEntries; // Entries whose name changed after the prefix index was built
+	private int unsortedCount;
+	
+	private final ColdRegistryIndex coldIndex; // May be null
+	private BitSet deadColdRecords; // Records replaced by entries in memory, or not confirmed yet
+	private int coldCount;
+	
+	// UUIDs changed while an index is built from a copy of this one, as pairs of most and least significant bits
+	private long[] trackedUUIDs; // Null when the changes are not tracked
+	private int trackedCount;
+	
+	
+	UUIDNameIndex() {
+		this(null, true);
+	}
+	
+	/**
+	 * If the records of the cold index are not confirmed, they are ignored until restored
+	 * with {@link #restoreColdRecord(UUID, int, String)}.
+	 */
+	UUIDNameIndex(ColdRegistryIndex coldIndex, boolean confirmed) {
+		int capacity = 1024;
+		mostSigBits = new long[capacity];
+		leastSigBits = new long[capacity];
+		nameOffsets = new int[capacity];
+		nameHashes = new int[capacity];
+		lastSeen = new int[capacity];
+		freeEntries = new int[16];
+		uuidTable = new int[tableSizeFor(capacity)];
+		nameTable = new int[tableSizeFor(capacity)];
+		arena = new byte[capacity * 12];
+		unsortedEntries = new int[64];
+		
+		this.coldIndex = coldIndex;
+		int coldSize = coldIndex != null ? coldIndex.size() : 0;
+		deadColdRecords = new BitSet(coldSize);
+		if (confirmed) {
+			coldCount = coldSize;
+		} else {
+			deadColdRecords.set(0, coldSize);
+		}
+	}
+	
+	private UUIDNameIndex(UUIDNameIndex other) {
+		mostSigBits = other.mostSigBits.clone();
+		leastSigBits = other.leastSigBits.clone();
+		nameOffsets = other.nameOffsets.clone();
+		nameHashes = other.nameHashes.clone();
+		lastSeen = other.lastSeen.clone();
+		entriesEnd = other.entriesEnd;
+		freeEntries = other.freeEntries.clone();
+		freeEntriesCount = other.freeEntriesCount;
+		size = other.size;
+		uuidTable = other.uuidTable.clone();
+		nameTable = other.nameTable.clone();
+		arena = other.arena.clone();
+		arenaSize = other.arenaSize;
+		arenaGarbage = other.arenaGarbage;
+		prefixIndex = other.prefixIndex;
+		unsortedEntries = other.unsortedEntries.clone();
+		unsortedCount = other.unsortedCount;
+		coldIndex = other.coldIndex;
+		deadColdRecords = (BitSet) other.deadColdRecords.clone();
+		coldCount = other.coldCount;
+	}
+	
+	UUIDNameIndex copy() {
+		return new UUIDNameIndex(this);
+	}
+	
+	int size() {
+		return size + coldCount;
+	}
+	
+	int getColdCount() {
+		return coldCount;
+	}
+	
+	boolean containsUUID(UUID uuid) {
+		long mostSig = uuid.getMostSignificantBits();
+		long leastSig = uuid.getLeastSignificantBits();
+		return findUUID(mostSig, leastSig) != NO_ENTRY || findColdUUID(mostSig, leastSig) != NO_ENTRY;
+	}
+	
+	String getName(UUID uuid) {
+		long mostSig = uuid.getMostSignificantBits();
+		long leastSig = uuid.getLeastSignificantBits();
+		int entry = findUUID(mostSig, leastSig);
+		if (entry != NO_ENTRY) {
+			return decodeName(entry);
+		}
+		
+		int record = findColdUUID(mostSig, leastSig);
+		return record != NO_ENTRY ? coldIndex.getName(record) : null;
+	}
+	
+	UUID getUUID(CharSequence name) {
+		int nameHash = CIString.hashCode(name);
+		int entry = findName(name, nameHash);
+		if (entry != NO_ENTRY) {
+			return new UUID(mostSigBits[entry], leastSigBits[entry]);
+		}
+		
+		int record = findColdName(name, nameHash);
+		return record != NO_ENTRY ? new UUID(coldIndex.getMostSigBits(record), coldIndex.getLeastSigBits(record)) : null;
+	}
+	
+	/**
+	 * Associates the name to the UUID, replacing the previous name of the UUID and removing the previous UUID of the name.
+	 */
+	void forcePut(UUID uuid, String name) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Name too long: " + name);
+		}
+		
+		long mostSig = uuid.getMostSignificantBits();
+		long leastSig = uuid.getLeastSignificantBits();
+		int nameHash = CIString.hashCode(name);
+		int coldLastSeen = removeColdRecords(mostSig, leastSig, name, nameHash);
+		int entry = findUUID(mostSig, leastSig);
+		int nameEntry = findName(name, nameHash);
+		
+		if (nameEntry != NO_ENTRY && nameEntry != entry) {
+			removeEntry(nameEntry);
+		}
+		
+		if (entry != NO_ENTRY) {
+			if (nameEntry == entry && hasExactName(entry, nameBytes)) {
+				return; // Nothing changed
+			}
+			
+			// Only the name changes
+			removeFromTable(nameTable, entry, false);
+			arenaGarbage += 1 + nameLength(entry);
+			nameOffsets[entry] = FREE_ENTRY; // Until the new name is appended, so that the arena compaction skips it
+			
+		} else {
+			if (size + 1 > uuidTable.length * MAX_LOAD_FACTOR) {
+				rehash(uuidTable.length * 2);
+			}
+			
+			entry = allocateEntry();
+			mostSigBits[entry] = mostSig;
+			leastSigBits[entry] = leastSig;
+			lastSeen[entry] = coldLastSeen;
+			insertInTable(uuidTable, entry, true);
+			size++;
+		}
+		
+		nameOffsets[entry] = appendName(nameBytes);
+		nameHashes[entry] = nameHash;
+		insertInTable(nameTable, entry, false);
+		addUnsortedEntry(entry);
+		track(mostSig, leastSig);
+	}
+	
+	/**
+	 * Returns the minute of the last login of the UUID, 0 if unknown.
+	 */
+	int getLastSeen(UUID uuid) {
+		long mostSig = uuid.getMostSignificantBits();
+		long leastSig = uuid.getLeastSignificantBits();
+		int entry = findUUID(mostSig, leastSig);
+		if (entry != NO_ENTRY) {
+			return lastSeen[entry];
+		}
+		
+		int record = findColdUUID(mostSig, leastSig);
+		return record != NO_ENTRY ? coldIndex.getLastSeen(record) : 0;
+	}
+	
+	/**
+	 * Sets the minute of the last login of the UUID, returns false if the UUID is not in the index.
+	 * An entry in the cold index is moved back in memory.
+	 */
+	boolean setLastSeen(UUID uuid, int minute) {
+		long mostSig = uuid.getMostSignificantBits();
+		long leastSig = uuid.getLeastSignificantBits();
+		int entry = findUUID(mostSig, leastSig);
+		if (entry == NO_ENTRY) {
+			int record = findColdUUID(mostSig, leastSig);
+			if (record == NO_ENTRY) {
+				return false;
+			}
+			
+			forcePut(uuid, coldIndex.getName(record));
+			entry = findUUID(mostSig, leastSig);
+		}
+		
+		lastSeen[entry] = minute;
+		track(mostSig, leastSig);
+		return true;
+	}
+	
+	/**
+	 * Makes visible a record of the cold index that is confirmed by the registry snapshot, instead of putting the entry in memory.
+	 * Returns false if the cold index does not contain exactly the same entry, or if the UUID or the name are already in the index.
+	 */
+	boolean restoreColdRecord(UUID uuid, int minute, String name) {
+		if (coldIndex == null) {
+			return false;
+		}
+		
+		long mostSig = uuid.getMostSignificantBits();
+		long leastSig = uuid.getLeastSignificantBits();
+		int record = coldIndex.findUUID(mostSig, leastSig);
+		if (record == NO_ENTRY || !deadColdRecords.get(record) || coldIndex.getLastSeen(record) != minute
+				|| !Arrays.equals(coldIndex.getNameBytes(record), name.getBytes(StandardCharsets.UTF_8))) {
+			return false;
+		}
+		
+		int nameHash = CIString.hashCode(name);
+		if (findUUID(mostSig, leastSig) != NO_ENTRY || findName(name, nameHash) != NO_ENTRY || findColdName(name, nameHash) != NO_ENTRY) {
+			return false;
+		}
+		
+		deadColdRecords.clear(record);
+		coldCount++;
+		return true;
+	}
+	
+	/**
+	 * Returns a new index that uses the cold index, written from a copy of this index: the entries in memory
+	 * that are in the cold index exactly as they are here are left out, the others are put in memory again.
+	 */
+	UUIDNameIndex withColdIndex(ColdRegistryIndex newColdIndex) {
+		UUIDNameIndex result = new UUIDNameIndex(newColdIndex, true);
+		
+		for (int entry = 0; entry < entriesEnd; entry++) {
+			if (nameOffsets[entry] == FREE_ENTRY) {
+				continue;
+			}
+			
+			int record = newColdIndex.findUUID(mostSigBits[entry], leastSigBits[entry]);
+			byte[] nameBytes = Arrays.copyOfRange(arena, nameOffsets[entry] + 1, nameOffsets[entry] + 1 + nameLength(entry));
+			if (record != NO_ENTRY && newColdIndex.getLastSeen(record) == lastSeen[entry] && Arrays.equals(newColdIndex.getNameBytes(record), nameBytes)) {
+				continue;
+			}
+			
+			UUID uuid = new UUID(mostSigBits[entry], leastSigBits[entry]);
+			result.forcePut(uuid, new String(nameBytes, StandardCharsets.UTF_8));
+			result.lastSeen[result.findUUID(mostSigBits[entry], leastSigBits[entry])] = lastSeen[entry];
+		}
+		
+		// Records of the new cold index changed after the copy have the UUID or the name in memory again, and were masked by forcePut
+		return result;
+	}
+	
+	/**
+	 * Starts tracking the changed UUIDs, so that they can be replayed on an index built from a copy of this one.
+	 */
+	void startTracking() {
+		trackedUUIDs = new long[128];
+		trackedCount = 0;
+	}
+	
+	void stopTracking() {
+		trackedUUIDs = null;
+	}
+	
+	/**
+	 * Copies the current state of the UUIDs changed since the tracking started to the other index, then stops tracking.
+	 */
+	void replayTrackedChanges(UUIDNameIndex target) {
+		for (int i = 0; i < trackedCount; i += 2) {
+			long mostSig = trackedUUIDs[i];
+			long leastSig = trackedUUIDs[i + 1];
+			int entry = findUUID(mostSig, leastSig);
+			
+			if (entry != NO_ENTRY) {
+				target.forcePut(new UUID(mostSig, leastSig), decodeName(entry));
+				target.lastSeen[target.findUUID(mostSig, leastSig)] = lastSeen[entry];
+			} else if (findColdUUID(mostSig, leastSig) == NO_ENTRY) {
+				target.removeUUID(mostSig, leastSig);
+			}
+		}
+		stopTracking();
+	}
+	
+	private void track(long mostSig, long leastSig) {
+		if (trackedUUIDs == null) {
+			return;
+		}
+		if (trackedCount + 2 > trackedUUIDs.length) {
+			trackedUUIDs = Arrays.copyOf(trackedUUIDs, trackedUUIDs.length * 2);
+		}
+		trackedUUIDs[trackedCount++] = mostSig;
+		trackedUUIDs[trackedCount++] = leastSig;
+	}
+	
+	/**
+	 * Returns up to limit names starting with the prefix (case insensitive), the most recently seen first.
+	 * The matches are ranked in a bounded min-heap on the last seen minute. Only the first candidates are ranked
+	 * when there are too many, the names changed since the last sort first, then the sorted ones in alphabetical order.
+	 */
+	List<String> findByPrefix(String prefix, int limit) {
+		if (limit <= 0) {
+			return new ArrayList<>();
+		}
+		int[] heap = new int[Math.min(limit, size)];
+		int heapSize = 0;
+		
+		// Entries renamed after the build may also be in the sorted names, with the old or the same name
+		int[] unsortedMatches = new int[unsortedCount];
+		int unsortedMatchesCount = 0;
+		for (int i = 0; i < unsortedCount && unsortedMatchesCount < MAX_PREFIX_CANDIDATES; i++) {
+			int entry = unsortedEntries[i];
+			if (nameOffsets[entry] != FREE_ENTRY && NamePrefixIndex.comparePrefix(arena, nameOffsets[entry], prefix) == 0) {
+				unsortedMatches[unsortedMatchesCount++] = entry;
+			}
+		}
+		Arrays.sort(unsortedMatches, 0, unsortedMatchesCount);
+		for (int i = 0; i < unsortedMatchesCount; i++) {
+			if (i == 0 || unsortedMatches[i] != unsortedMatches[i - 1]) {
+				heapSize = offerToHeap(heap, heapSize, unsortedMatches[i]);
+			}
+		}
+		
+		// The sorted names may be outdated, the current name of each entry is checked again if it changed
+		NamePrefixIndex prefixIndex = this.prefixIndex;
+		int candidates = unsortedMatchesCount;
+		for (int position = prefixIndex.lowerBound(prefix); position < prefixIndex.size() && candidates < MAX_PREFIX_CANDIDATES; position++) {
+			if (!prefixIndex.startsWith(position, prefix)) {
+				break;
+			}
+			candidates++;
+			int entry = prefixIndex.getEntry(position);
+			if (entry >= entriesEnd || nameOffsets[entry] == FREE_ENTRY) {
+				continue;
+			}
+			if (!prefixIndex.hasSameName(position, arena, nameOffsets[entry]) && NamePrefixIndex.comparePrefix(arena, nameOffsets[entry], prefix) != 0) {
+				continue;
+			}
+			if (Arrays.binarySearch(unsortedMatches, 0, unsortedMatchesCount, entry) < 0) {
+				heapSize = offerToHeap(heap, heapSize, entry);
+			}
+		}
+		
+		// Removing the minimum each time gives the results in reverse order
+		String[] names = new String[heapSize];
+		while (heapSize > 0) {
+			int entry = heap[0];
+			heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize, 0);
+			names[heapSize] = decodeName(entry);
+		}
+		return new ArrayList<>(Arrays.asList(names));
+	}
+	
+	/**
+	 * Adds the entry to the min-heap if it's not full, or replaces the least recently seen entry if the new one was seen later.
+	 * Returns the new size of the heap.
+	 */
+	private int offerToHeap(int[] heap, int heapSize, int entry) {
+		if (heapSize < heap.length) {
+			int position = heapSize;
+			while (position > 0) {
+				int parent = (position - 1) >>> 1;
+				if (lastSeen[heap[parent]] <= lastSeen[entry]) {
+					break;
+				}
+				heap[position] = heap[parent];
+				position = parent;
+			}
+			heap[position] = entry;
+			return heapSize + 1;
+		}
+		
+		if (heapSize > 0 && lastSeen[entry] > lastSeen[heap[0]]) {
+			heap[0] = entry;
+			siftDown(heap, heapSize, 0);
+		}
+		return heapSize;
+	}
+	
+	private void siftDown(int[] heap, int heapSize, int position) {
+		int entry = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && lastSeen[heap[child + 1]] < lastSeen[heap[child]]) {
+				child++;
+			}
+			if (lastSeen[entry] <= lastSeen[heap[child]]) {
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = entry;
+	}
+	
+	int getUnsortedCount() {
+		return unsortedCount;
+	}
+	
+	/**
+	 * Captures the current names for a new prefix index. The returned builder can run without holding locks,
+	 * the result must be passed to {@link #setPrefixIndex(NamePrefixIndex)} before another builder is created.
+	 */
+	PrefixIndexBuilder newPrefixIndexBuilder() {
+		byte[] currentArena = arena; // The bytes of the current names will not be overwritten
+		int[] currentNameOffsets = Arrays.copyOf(nameOffsets, entriesEnd);
+		int coveredChanges = unsortedCount;
+		return () -> NamePrefixIndex.build(currentArena, currentNameOffsets, coveredChanges);
+	}
+	
+	void setPrefixIndex(NamePrefixIndex prefixIndex) {
+		// Keep the changes that happened while building
+		int coveredChanges = prefixIndex.getCoveredChanges();
+		System.arraycopy(unsortedEntries, coveredChanges, unsortedEntries, 0, unsortedCount - coveredChanges);
+		unsortedCount -= coveredChanges;
+		this.prefixIndex = prefixIndex;
+	}
+	
+	private void removeUUID(long mostSig, long leastSig) {
+		int entry = findUUID(mostSig, leastSig);
+		if (entry != NO_ENTRY) {
+			removeEntry(entry);
+		}
+		
+		int record = findColdUUID(mostSig, leastSig);
+		if (record != NO_ENTRY) {
+			removeColdRecord(record);
+		}
+	}
+	
+	boolean removeName(CharSequence name) {
+		int nameHash = CIString.hashCode(name);
+		int entry = findName(name, nameHash);
+		if (entry != NO_ENTRY) {
+			removeEntry(entry);
+			return true;
+		}
+		
+		int record = findColdName(name, nameHash);
+		if (record != NO_ENTRY) {
+			removeColdRecord(record);
+			return true;
+		}
+		return false;
+	}
+	
+	void forEach(EntryConsumer consumer) throws IOException {
+		forEachInactive(Integer.MAX_VALUE, consumer);
+	}
+	
+	/**
+	 * Iterates the entries in memory not seen since the minute, and all the entries in the cold index.
+	 */
+	void forEachInactive(int beforeMinute, EntryConsumer consumer) throws IOException {
+		for (int entry = 0; entry < entriesEnd; entry++) {
+			int nameOffset = nameOffsets[entry];
+			if (nameOffset != FREE_ENTRY && lastSeen[entry] < beforeMinute) {
+				consumer.accept(mostSigBits[entry], leastSigBits[entry], lastSeen[entry], arena, nameOffset + 1, arena[nameOffset] & 0xFF);
+			}
+		}
+		
+		if (coldIndex != null) {
+			for (int record = deadColdRecords.nextClearBit(0); record < coldIndex.size(); record = deadColdRecords.nextClearBit(record + 1)) {
+				byte[] nameBytes = coldIndex.getNameBytes(record);
+				consumer.accept(coldIndex.getMostSigBits(record), coldIndex.getLeastSigBits(record), coldIndex.getLastSeen(record), nameBytes, 0, nameBytes.length);
+			}
+		}
+	}
+	
+	
+	private int findColdUUID(long mostSig, long leastSig) {
+		if (coldIndex == null || coldCount == 0) {
+			return NO_ENTRY;
+		}
+		int record = coldIndex.findUUID(mostSig, leastSig);
+		return record != NO_ENTRY && !deadColdRecords.get(record) ? record : NO_ENTRY;
+	}
+	
+	private int findColdName(CharSequence name, int nameHash) {
+		if (coldIndex == null || coldCount == 0) {
+			return NO_ENTRY;
+		}
+		int record = coldIndex.findName(name, nameHash);
+		return record != NO_ENTRY && !deadColdRecords.get(record) ? record : NO_ENTRY;
+	}
+	
+	/**
+	 * Masks the records of the cold index with the UUID or the name, returns the minute of the last login of the UUID or 0.
+	 */
+	private int removeColdRecords(long mostSig, long leastSig, CharSequence name, int nameHash) {
+		int uuidLastSeen = 0;
+		int record = findColdUUID(mostSig, leastSig);
+		if (record != NO_ENTRY) {
+			uuidLastSeen = coldIndex.getLastSeen(record);
+			removeColdRecord(record);
+		}
+		
+		record = findColdName(name, nameHash);
+		if (record != NO_ENTRY) {
+			removeColdRecord(record);
+		}
+		return uuidLastSeen;
+	}
+	
+	private void removeColdRecord(int record) {
+		deadColdRecords.set(record);
+		coldCount--;
+		track(coldIndex.getMostSigBits(record), coldIndex.getLeastSigBits(record));
+	}
+	
+	
+	private int findUUID(long mostSig, long leastSig) {
+		int[] table = uuidTable;
+		int mask = table.length - 1;
+		int slot = mix(hashUUID(mostSig, leastSig)) & mask;
+		int value;
+		
+		// The probes are bounded in case of concurrent changes
+		for (int probes = 0; probes < table.length && (value = table[slot]) != 0; probes++) {
+			int entry = value - 1;
+			if (mostSigBits[entry] == mostSig && leastSigBits[entry] == leastSig) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+		
+		return NO_ENTRY;
+	}
+	
+	private int findName(CharSequence name, int nameHash) {
+		int[] table = nameTable;
+		int mask = table.length - 1;
+		int slot = mix(nameHash) & mask;
+		int value;
+		
+		for (int probes = 0; probes < table.length && (value = table[slot]) != 0; probes++) {
+			int entry = value - 1;
+			if (nameHashes[entry] == nameHash && nameEqualsIgnoreCase(entry, name)) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+		
+		return NO_ENTRY;
+	}
+	
+	private void insertInTable(int[] table, int entry, boolean isUUIDTable) {
+		int mask = table.length - 1;
+		int slot = homeSlot(entry, isUUIDTable, mask);
+		
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = entry + 1;
+	}
+	
+	private void removeFromTable(int[] table, int entry, boolean isUUIDTable) {
+		int mask = table.length - 1;
+		int hole = homeSlot(entry, isUUIDTable, mask);
+		
+		while (table[hole] != entry + 1) {
+			hole = (hole + 1) & mask;
+		}
+		
+		// Backward shift deletion: move back the following entries of the cluster that can fill the hole
+		int next = (hole + 1) & mask;
+		while (table[next] != 0) {
+			int home = homeSlot(table[next] - 1, isUUIDTable, mask);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[hole] = 0;
+	}
+	
+	private int homeSlot(int entry, boolean isUUIDTable, int mask) {
+		if (isUUIDTable) {
+			return mix(hashUUID(mostSigBits[entry], leastSigBits[entry])) & mask;
+		} else {
+			return mix(nameHashes[entry]) & mask;
+		}
+	}
+	
+	private void rehash(int tableSize) {
+		uuidTable = new int[tableSize];
+		nameTable = new int[tableSize];
+		
+		for (int entry = 0; entry < entriesEnd; entry++) {
+			if (nameOffsets[entry] != FREE_ENTRY) {
+				insertInTable(uuidTable, entry, true);
+				insertInTable(nameTable, entry, false);
+			}
+		}
+	}
+	
+	private int allocateEntry() {
+		if (freeEntriesCount > 0) {
+			return freeEntries[--freeEntriesCount];
+		}
+		
+		if (entriesEnd == mostSigBits.length) {
+			int capacity = mostSigBits.length + (mostSigBits.length >> 1);
+			mostSigBits = Arrays.copyOf(mostSigBits, capacity);
+			leastSigBits = Arrays.copyOf(leastSigBits, capacity);
+			nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+			nameHashes = Arrays.copyOf(nameHashes, capacity);
+			lastSeen = Arrays.copyOf(lastSeen, capacity);
+		}
+		return entriesEnd++;
+	}
+	
+	private void addUnsortedEntry(int entry) {
+		if (unsortedCount == unsortedEntries.length) {
+			unsortedEntries = Arrays.copyOf(unsortedEntries, unsortedEntries.length * 2);
+		}
+		unsortedEntries[unsortedCount++] = entry;
+	}
+	
+	private void removeEntry(int entry) {
+		track(mostSigBits[entry], leastSigBits[entry]);
+		removeFromTable(uuidTable, entry, true);
+		removeFromTable(nameTable, entry, false);
+		arenaGarbage += 1 + nameLength(entry);
+		nameOffsets[entry] = FREE_ENTRY;
+		
+		if (freeEntriesCount == freeEntries.length) {
+			freeEntries = Arrays.copyOf(freeEntries, freeEntries.length * 2);
+		}
+		freeEntries[freeEntriesCount++] = entry;
+		size--;
+	}
+	
+	private int appendName(byte[] nameBytes) {
+		int required = 1 + nameBytes.length;
+		
+		if (arenaSize + required > arena.length) {
+			if (arenaGarbage > arenaSize / 2) {
+				compactArena();
+			}
+			if (arenaSize + required > arena.length) {
+				arena = Arrays.copyOf(arena, Math.max(arena.length + (arena.length >> 1), arenaSize + required));
+			}
+		}
+		
+		int offset = arenaSize;
+		arena[offset] = (byte) nameBytes.length;
+		System.arraycopy(nameBytes, 0, arena, offset + 1, nameBytes.length);
+		arenaSize += required;
+		return offset;
+	}
+	
+	private void compactArena() {
+		byte[] compacted = new byte[arena.length];
+		int position = 0;
+		
+		for (int entry = 0; entry < entriesEnd; entry++) {
+			int nameOffset = nameOffsets[entry];
+			if (nameOffset != FREE_ENTRY) {
+				int length = 1 + (arena[nameOffset] & 0xFF);
+				System.arraycopy(arena, nameOffset, compacted, position, length);
+				nameOffsets[entry] = position;
+				position += length;
+			}
+		}
+		
+		arena = compacted;
+		arenaSize = position;
+		arenaGarbage = 0;
+	}
+	
+	private int nameLength(int entry) {
+		return arena[nameOffsets[entry]] & 0xFF;
+	}
+	
+	private String decodeName(int entry) {
+		return new String(arena, nameOffsets[entry] + 1, nameLength(entry), StandardCharsets.UTF_8);
+	}
+	
+	private boolean hasExactName(int entry, byte[] nameBytes) {
+		int nameOffset = nameOffsets[entry] + 1;
+		int length = nameLength(entry);
+		if (length != nameBytes.length) {
+			return false;
+		}
+		
+		for (int i = 0; i < length; i++) {
+			if (arena[nameOffset + i] != nameBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Compares the name with the chars, decoding the UTF-8 bytes on the fly to avoid allocations.
+	 */
+	private boolean nameEqualsIgnoreCase(int entry, CharSequence name) {
+		int position = nameOffsets[entry] + 1;
+		int end = position + nameLength(entry);
+		int nameLength = name.length();
+		if (end - position < nameLength || end - position > nameLength * 3) {
+			return false; // Each char takes from 1 to 3 bytes
+		}
+		
+		int charIndex = 0;
+		while (position < end) {
+			int b = arena[position];
+			int codePoint;
+			if (b >= 0) {
+				codePoint = b;
+				position++;
+			} else if ((b & 0xE0) == 0xC0) {
+				codePoint = (b & 0x1F) << 6 | (arena[position + 1] & 0x3F);
+				position += 2;
+			} else if ((b & 0xF0) == 0xE0) {
+				codePoint = (b & 0x0F) << 12 | (arena[position + 1] & 0x3F) << 6 | (arena[position + 2] & 0x3F);
+				position += 3;
+			} else {
+				codePoint = (b & 0x07) << 18 | (arena[position + 1] & 0x3F) << 12 | (arena[position + 2] & 0x3F) << 6 | (arena[position + 3] & 0x3F);
+				position += 4;
+			}
+			
+			if (Character.isBmpCodePoint(codePoint)) {
+				if (charIndex >= nameLength || !CIString.equalsIgnoreCase((char) codePoint, name.charAt(charIndex++))) {
+					return false;
+				}
+			} else {
+				if (charIndex + 1 >= nameLength
+						|| !CIString.equalsIgnoreCase(Character.highSurrogate(codePoint), name.charAt(charIndex++))
+						|| !CIString.equalsIgnoreCase(Character.lowSurrogate(codePoint), name.charAt(charIndex++))) {
+					return false;
+				}
+			}
+		}
+		
+		return charIndex == nameLength;
+	}
+	
+	static int hashUUID(long mostSig, long leastSig) {
+		long hash = mostSig ^ leastSig;
+		return (int) (hash ^ (hash >>> 32));
+	}
+	
+	static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static int tableSizeFor(int entries) {
+		int minSize = Math.max(16, (int) Math.ceil(entries / MAX_LOAD_FACTOR));
+		return Integer.highestOneBit(minSize - 1) << 1;
+	}
+	
+	
+	interface EntryConsumer {
+		
+		void accept(long mostSigBits, long leastSigBits, int lastSeen, byte[] nameBytes, int offset, int length) throws IOException;
+		
+	}
+	
+	interface PrefixIndexBuilder {
+		
+		NamePrefixIndex build();
+		
+	}
+	
+}
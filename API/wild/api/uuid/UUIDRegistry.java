@@ -29,59 +29,162 @@
 package wild.api.uuid;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.gmail.filoghost.bungeecommons.BungeeCommonsPlugin;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.PostLoginEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import net.md_5.bungee.event.EventPriority;
-import wild.api.util.CIString;
+import wild.api.mysql.MySQL;
 
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class UUIDRegistry implements Listener {
 
+	private static final int JOURNAL_COMPACTION_THRESHOLD = 10000;
+	private static final int BATCH_LOAD_CONCURRENCY = 2; // Leaves some threads of the fetcher to the other requests
+	private static final int UNSORTED_NAMES_THRESHOLD = 10000; // Prefix searches scan the names changed since the last sort
+	private static final long COLD_AFTER = TimeUnit.DAYS.toMillis(30); // Players inactive since then are moved to the cold index
+	private static final long DEMOTION_INTERVAL = TimeUnit.HOURS.toMillis(24);
+	private static final int LOGIN_BATCH_SIZE = 500;
+	private static final long BATCH_LOAD_MAX_WAIT = TimeUnit.MINUTES.toMillis(30); // Then the remaining UUIDs are left to the repair queue
+	private static final long SYNC_LOAD_MAX_WAIT = TimeUnit.SECONDS.toMillis(30);
+
 	private static File saveFile;
-	private static BiMap<UUID, CIString> uuidToNames;
+	private static File coldFile;
+	private static RegistryJournal journal;
+	private static UUIDNameIndex index;
+	private static final StampedLock indexLock = new StampedLock(); // Lookups use optimistic reads, they don't block changes
+	private static final Object writeLock = new Object(); // Serializes changes, so that they are journaled in the same order
 	private static Logger logger;
+	private static SharedRegistryStorage sharedStorage;
+	private static RegistryRepairQueue repairQueue;
+	
+	private static boolean needSave; // The snapshot must be rewritten even if the journal is small
+	private static boolean lastSeenChanged; // Logins are not journaled, they are only saved in the snapshot
+	private static final AtomicBoolean sortScheduled = new AtomicBoolean();
+	private static volatile long nextDemotion; // Never during init(), the first one runs in the periodic task
+	
+	// Logins are applied in batches by a single writer, the event handler only adds them to the queue
+	private static final Queue<Login> pendingLogins = new ConcurrentLinkedQueue<>();
+	private static final AtomicBoolean loginDrainScheduled = new AtomicBoolean();
+	
+	// Only delays the retries of the batch loads, which run on the threads of the fetcher
+	private static final ScheduledExecutorService BATCH_LOAD_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("UUIDRegistry batch load scheduler").setDaemon(true).build());
 	
-	private static boolean needSave;
+	
+	/**
+	 * Shares the registry with the other proxies using the same database, which becomes the source of truth.
+	 * New associations are written in batches, and the ones from the other proxies are polled periodically.
+	 * The MySQL instance must be connected and dedicated to the registry.
+	 */
+	public static void enableSharedStorage(@NonNull MySQL mysql) throws SQLException {
+		if (sharedStorage != null) {
+			throw new IllegalStateException("Shared storage already enabled");
+		}
+		
+		sharedStorage = new SharedRegistryStorage(mysql, new File(BungeeCommonsPlugin.instance.getDataFolder(), "uuid-registry.position"), logger);
+		ProxyServer.getInstance().getScheduler().schedule(BungeeCommonsPlugin.instance, () -> {
+			sharedStorage.synchronize();
+		}, 0, 5, TimeUnit.SECONDS);
+	}
 	
 	
+	/**
+	 * Waits for the API limits at most 30 seconds, the UUIDs not resolved by then are fetched later in background.
+	 * It can't be called from the threads of the fetcher, they are needed by the load.
+	 */
 	public static void syncLoadUUIDs(Collection<UUID> uuids) {
-		for (UUID uuid : uuids) {
+		if (UUIDFetcher.isFetcherThread()) {
+			throw new IllegalStateException("Cannot wait for a batch load from a thread of the UUID fetcher");
+		}
+		loadUUIDs(uuids, null, SYNC_LOAD_MAX_WAIT).join();
+	}
+	
+	/**
+	 * Fetches online the names of the UUIDs that are not in the registry, a few at a time, waiting for the API limits if necessary.
+	 * The names are registered all together, then the future is completed with them.
+	 * The UUIDs that couldn't be resolved are missing from the result (failed requests are retried later in background,
+	 * as well as the remaining UUIDs if the API limits are still reached after a long wait).
+	 * 
+	 * @param progressListener receives the amount of completed requests and the total amount, can be null
+	 */
+	public static CompletableFuture<Map<UUID, String>> loadUUIDsAsync(Collection<UUID> uuids, BiConsumer<Integer, Integer> progressListener) {
+		return loadUUIDs(uuids, progressListener, BATCH_LOAD_MAX_WAIT);
+	}
+	
+	private static CompletableFuture<Map<UUID, String>> loadUUIDs(Collection<UUID> uuids, BiConsumer<Integer, Integer> progressListener, long maxWait) {
+		Queue<UUID> missingUUIDs = new ConcurrentLinkedQueue<>();
+		for (UUID uuid : new LinkedHashSet<>(uuids)) {
 			if (!containsUUID(uuid)) {
 				logger.warning("Fetching online the name for UUID " + uuid + " because it was not found in the UUID map");
-				updateAssociation(uuid);
-				needSave = true;
+				missingUUIDs.add(uuid);
 			}
 		}
+		
+		if (missingUUIDs.isEmpty()) {
+			return CompletableFuture.completedFuture(Collections.emptyMap());
+		}
+		
+		BatchLoad batchLoad = new BatchLoad(missingUUIDs, missingUUIDs.size(), progressListener, System.currentTimeMillis() + maxWait);
+		CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(BATCH_LOAD_CONCURRENCY, batchLoad.total)];
+		
+		for (int i = 0; i < workers.length; i++) {
+			CompletableFuture<Void> worker = new CompletableFuture<>();
+			workers[i] = worker;
+			UUIDFetcher.BACKGROUND_EXECUTOR.execute(() -> batchLoad.work(null, worker));
+		}
+		
+		return CompletableFuture.allOf(workers).thenApply(v -> {
+			List<Association> associations = new ArrayList<>(batchLoad.names.size());
+			batchLoad.names.forEach((uuid, name) -> associations.add(new Association(uuid, name)));
+			registerAssociations(associations);
+			return batchLoad.names;
+		});
 	}
 	
 	
 	public static boolean containsUUID(UUID uuid) {
-		synchronized (uuidToNames) {
-			return uuidToNames.containsKey(uuid);
-		}
+		return readIndex(index -> index.containsUUID(uuid));
 	}
 	
 	
@@ -91,17 +194,7 @@ public class UUIDRegistry implements Listener {
 			return onlinePlayer.getName();
 		}
 		
-		CIString ciName;
-		
-		synchronized (uuidToNames) {
-			ciName = uuidToNames.get(uuid);
-		}
-		
-		if (ciName != null) {
-			return ciName.toString();
-		} else {
-			return null;
-		}
+		return readIndex(index -> index.getName(uuid));
 	}
 	
 	public static String getNameFallback(UUID uuid) {
@@ -120,99 +213,426 @@ public class UUIDRegistry implements Listener {
 			return onlinePlayer.getUniqueId();
 		}
 		
-		CIString ciName = new CIString(name);
-		synchronized (uuidToNames) {
-			return uuidToNames.inverse().get(ciName);
+		return readIndex(index -> index.getUUID(name));
+	}
+	
+	
+	public static Map<UUID, String> getNames(Collection<UUID> uuids) {
+		return getNames(uuids, null);
+	}
+	
+	/**
+	 * Returns the names of the UUIDs, looked up together in the same consistent view of the registry.
+	 * 
+	 * @param missingUUIDs receives the UUIDs that were not found (for example to fetch them with loadUUIDsAsync()), can be null
+	 */
+	public static Map<UUID, String> getNames(Collection<UUID> uuids, Collection<UUID> missingUUIDs) {
+		Map<UUID, String> names = readIndex(index -> {
+			Map<UUID, String> result = new HashMap<>(mapCapacity(uuids.size()));
+			for (UUID uuid : uuids) {
+				String name = index.getName(uuid);
+				if (name != null) {
+					result.put(uuid, name);
+				}
+			}
+			return result;
+		});
+		
+		if (names.size() < uuids.size()) {
+			// Players that just joined may not be in the registry yet
+			for (UUID uuid : uuids) {
+				if (!names.containsKey(uuid)) {
+					ProxiedPlayer onlinePlayer = ProxyServer.getInstance().getPlayer(uuid);
+					if (onlinePlayer != null) {
+						names.put(uuid, onlinePlayer.getName());
+					} else if (missingUUIDs != null) {
+						missingUUIDs.add(uuid);
+					}
+				}
+			}
+		}
+		return names;
+	}
+	
+	public static Map<String, UUID> getUUIDs(Collection<String> names) {
+		return getUUIDs(names, null);
+	}
+	
+	/**
+	 * Same as getNames(), but for the UUIDs of the names. The keys of the result are the given names, case is not changed.
+	 * 
+	 * @param missingNames receives the names that were not found, can be null
+	 */
+	public static Map<String, UUID> getUUIDs(Collection<String> names, Collection<String> missingNames) {
+		Map<String, UUID> uuids = readIndex(index -> {
+			Map<String, UUID> result = new HashMap<>(mapCapacity(names.size()));
+			for (String name : names) {
+				UUID uuid = index.getUUID(name);
+				if (uuid != null) {
+					result.put(name, uuid);
+				}
+			}
+			return result;
+		});
+		
+		if (uuids.size() < names.size()) {
+			for (String name : names) {
+				if (!uuids.containsKey(name)) {
+					ProxiedPlayer onlinePlayer = ProxyServer.getInstance().getPlayer(name);
+					if (onlinePlayer != null) {
+						uuids.put(name, onlinePlayer.getUniqueId());
+					} else if (missingNames != null) {
+						missingNames.add(name);
+					}
+				}
+			}
 		}
+		return uuids;
+	}
+	
+	private static int mapCapacity(int size) {
+		return (int) (size / 0.75f) + 1;
 	}
 	
 	
+	/**
+	 * Returns the amount of UUIDs waiting for their name to be fetched again, for example after a name conflict or a failed request.
+	 */
+	public static int getPendingRepairs() {
+		return repairQueue.size();
+	}
+	
+	
+	/**
+	 * Returns up to limit known names starting with the prefix (case insensitive), for example to tab complete offline players.
+	 * The players who logged in most recently come first, the ones in the cold index (inactive for a long time) are not included.
+	 */
+	public static List<String> findNamesByPrefix(@NonNull String prefix, int limit) {
+		return readIndex(index -> index.findByPrefix(prefix, limit));
+	}
+	
+	
+	/**
+	 * Lookup tier of the fetcher: returns the UUID of the name only if the player logged in within the maximum age
+	 * (negative for any age), because names may have changed after being registered.
+	 */
+	static UUID getUUIDSeenWithin(String name, long maxAge) {
+		if (index == null) {
+			return null;
+		}
+		
+		int minMinute = minLastSeen(maxAge);
+		return readIndex(index -> {
+			UUID uuid = index.getUUID(name);
+			return uuid != null && index.getLastSeen(uuid) >= minMinute ? uuid : null;
+		});
+	}
+	
+	/**
+	 * Same as getUUIDSeenWithin(), but for the name of a UUID.
+	 */
+	static String getNameSeenWithin(UUID uuid, long maxAge) {
+		if (index == null) {
+			return null;
+		}
+		
+		int minMinute = minLastSeen(maxAge);
+		return readIndex(index -> index.getLastSeen(uuid) >= minMinute ? index.getName(uuid) : null);
+	}
+	
+	static SharedRegistryStorage getSharedStorage() {
+		return sharedStorage;
+	}
+	
+	
+	/**
+	 * Doesn't wait for the registry: until the login is applied, lookups find the player among the online ones.
+	 */
 	@EventHandler(priority = EventPriority.LOWEST)
 	public void onLogin(PostLoginEvent event) {
-		registerAssociation(event.getPlayer().getUniqueId(), event.getPlayer().getName(), true, true);
+		pendingLogins.add(new Login(event.getPlayer().getUniqueId(), event.getPlayer().getName(), currentMinute()));
+		if (loginDrainScheduled.compareAndSet(false, true)) {
+			runTaskAsync(UUIDRegistry::drainLogins);
+		}
 	}
 	
-
-	private static void registerAssociation(UUID uuid, String name, boolean isGuaranteedFresh, boolean resolveConflictsAsync) {
-		CIString ciName = new CIString(name);
-		boolean resolveConflicts = false;
-		UUID previousAssociatedUUID;
-		
-		synchronized (uuidToNames) {
-			/*
-			 * Note: if the UUID already exists with a different name, it's either:
-			 * - being updated because a player with that UUID joined
-			 * - duplicate inside the save file because of a manual edit
-			 * 
-			 * In both cases it shouldn't be relevant and it shouldn't trigger an update.
-			 * We only check if a name exists with a different UUID, in that case we should update both UUIDs.
-			 */
-			previousAssociatedUUID = uuidToNames.inverse().get(ciName);
+	private static void drainLogins() {
+		do {
+			applyPendingLogins();
+			loginDrainScheduled.set(false);
+			// Logins added before the flag was cleared didn't schedule another drain
+		} while (!pendingLogins.isEmpty() && loginDrainScheduled.compareAndSet(false, true));
+	}
+	
+	/**
+	 * Applies the queued logins, a batch at a time so that the locks are acquired once per batch.
+	 * Synchronized on the queue so that batches are applied in order, also when called by save().
+	 */
+	private static void applyPendingLogins() {
+		synchronized (pendingLogins) {
+			List<Login> batch = new ArrayList<>();
+			Login login;
 			
-			if (previousAssociatedUUID == null) {
-				// Ok, new association
-				uuidToNames.put(uuid, ciName);
-				needSave = true;
-				
-			} else if (previousAssociatedUUID.equals(uuid)) {
-				// Ok, association already present
+			do {
+				batch.clear();
+				while (batch.size() < LOGIN_BATCH_SIZE && (login = pendingLogins.poll()) != null) {
+					batch.add(login);
+				}
+				if (batch.isEmpty()) {
+					return;
+				}
 				
-			} else {
-				// Conflict, this name is associated with a different UUID
-				uuidToNames.inverse().remove(ciName);
-				if (isGuaranteedFresh) {
-					// If this association is guaranteed to be fresh, not need to check with Mojang API
-					uuidToNames.put(uuid, ciName);
+				try {
+					registerAssociations(batch);
+				} catch (Throwable t) {
+					logger.log(Level.SEVERE, "Couldn't register " + batch.size() + " logins in the UUID registry", t);
 				}
-				resolveConflicts = true;
-				needSave = true;
+			} while (batch.size() == LOGIN_BATCH_SIZE);
+		}
+	}
+	
+
+	private static void registerRepairedAssociation(UUID uuid, String name, String displacedName) {
+		registerAssociations(Collections.singletonList(new RepairedAssociation(uuid, name, displacedName)));
+	}
+	
+	/**
+	 * Registers the associations, applying them to the index under a single write stamp.
+	 * The last seen minute of logins is updated under the same stamp.
+	 */
+	private static void registerAssociations(Collection<? extends Association> associations) {
+		List<Association> conflicts = null;
+		List<PlayerNameChangedEvent> events = new ArrayList<>();
+		int unsortedCount;
+		
+		synchronized (writeLock) {
+			List<Association> changed = new ArrayList<>();
+			long stamp = indexLock.writeLock();
+			try {
+				for (Association association : associations) {
+					UUID uuid = association.getUuid();
+					String name = association.getName();
+					String oldName = index.getName(uuid);
+					if (oldName == null && association instanceof RepairedAssociation) {
+						oldName = ((RepairedAssociation) association).getDisplacedName(); // The entry was removed by the conflict
+					}
+					
+					/*
+					 * Note: if the UUID already exists with a different name, it's being updated because a player with that UUID joined.
+					 * It shouldn't trigger an update, we only check if a name exists with a different UUID.
+					 */
+					UUID previousAssociatedUUID = index.getUUID(name);
+					
+					if (previousAssociatedUUID == null) {
+						// Ok, new association
+						index.forcePut(uuid, name);
+						changed.add(association);
+						addNameChangedEvent(events, uuid, oldName, name);
+						
+					} else if (previousAssociatedUUID.equals(uuid)) {
+						// Ok, association already present, unless only the case of the name changed
+						if (!name.equals(oldName)) {
+							index.forcePut(uuid, name);
+							changed.add(association);
+							addNameChangedEvent(events, uuid, oldName, name);
+						}
+						
+					} else {
+						// Conflict, this name is associated with a different UUID
+						// This association is guaranteed to be fresh, no need to check it with Mojang API
+						index.forcePut(uuid, name);
+						changed.add(association);
+						addNameChangedEvent(events, uuid, oldName, name);
+						addNameChangedEvent(events, previousAssociatedUUID, name, null);
+						
+						logger.info("Resolving UUID conflict on name " + name + ": " + uuid + " vs " + previousAssociatedUUID);
+						if (conflicts == null) {
+							conflicts = new ArrayList<>();
+						}
+						conflicts.add(new Association(previousAssociatedUUID, name));
+					}
+					
+					if (association instanceof Login && index.setLastSeen(uuid, ((Login) association).getMinute())) {
+						lastSeenChanged = true;
+					}
+				}
+				unsortedCount = index.getUnsortedCount();
+			} finally {
+				indexLock.unlockWrite(stamp);
+			}
+			
+			// Writing to the journal and to the shared storage doesn't block the lookups
+			for (Association association : changed) {
+				journalAssociation(association.getUuid(), association.getName());
+				shareAssociation(association.getUuid(), association.getName());
 			}
 		}
 		
-		if (resolveConflicts) {
-			// Schedule update for both UUIDs
-			logger.info("Resolving UUID conflict on name " + name + ": " + uuid + " vs " + previousAssociatedUUID);
+		if (unsortedCount >= UNSORTED_NAMES_THRESHOLD && sortScheduled.compareAndSet(false, true)) {
+			runTaskAsync(() -> {
+				sortScheduled.set(false);
+				sortNames();
+			});
+		}
+		
+		if (conflicts != null) {
+			for (Association conflict : conflicts) {
+				// The displaced name is the old name of the event fired when the repair finds the new name
+				repairQueue.add(conflict.getUuid(), 0, conflict.getName());
+			}
+		}
+		callEventsAsync(events);
+	}
+	
+	/**
+	 * Applies associations polled from the shared storage, already validated by the proxy that wrote them.
+	 */
+	static void registerSharedAssociations(List<Association> associations) {
+		if (associations.isEmpty()) {
+			return;
+		}
+		
+		List<PlayerNameChangedEvent> events = new ArrayList<>();
+		
+		synchronized (writeLock) {
+			List<Association> changed = new ArrayList<>();
+			long stamp = indexLock.writeLock();
+			try {
+				for (Association association : associations) {
+					UUID uuid = association.getUuid();
+					String name = association.getName();
+					String oldName = index.getName(uuid);
+					
+					if (!name.equals(oldName)) {
+						UUID previousAssociatedUUID = index.getUUID(name);
+						index.forcePut(uuid, name);
+						changed.add(association);
+						
+						addNameChangedEvent(events, uuid, oldName, name);
+						if (previousAssociatedUUID != null && !previousAssociatedUUID.equals(uuid)) {
+							addNameChangedEvent(events, previousAssociatedUUID, name, null);
+						}
+					}
+				}
+			} finally {
+				indexLock.unlockWrite(stamp);
+			}
 			
-			Runnable task = () -> {
-				if (!isGuaranteedFresh) {
-					// Also update the current one if it's not guaranteed to be fresh, as it could be wrong
-					updateAssociation(uuid);
+			for (Association association : changed) {
+				journalAssociation(association.getUuid(), association.getName());
+			}
+		}
+		callEventsAsync(events);
+	}
+	
+	private static void addNameChangedEvent(List<PlayerNameChangedEvent> events, UUID uuid, String oldName, String newName) {
+		if (oldName != null && !oldName.equals(newName)) {
+			events.add(new PlayerNameChangedEvent(uuid, oldName, newName));
+		}
+	}
+	
+	private static void callEventsAsync(List<PlayerNameChangedEvent> events) {
+		if (!events.isEmpty()) {
+			runTaskAsync(() -> {
+				for (PlayerNameChangedEvent event : events) {
+					ProxyServer.getInstance().getPluginManager().callEvent(event);
 				}
-				updateAssociation(previousAssociatedUUID);
-			};
+			});
+		}
+	}
+	
+	/**
+	 * Loads an association from the save file, which is not guaranteed to be fresh. The caller must hold the locks.
+	 * 
+	 * Note: if the UUID already exists with a different name, it's a duplicate inside the save file because of a manual edit.
+	 * We only check if a name exists with a different UUID, in that case both UUIDs should be updated.
+	 */
+	private static void loadAssociation(UUID uuid, String name, List<UUID> conflictingUUIDs) {
+		UUID previousAssociatedUUID = index.getUUID(name);
+		
+		if (previousAssociatedUUID == null) {
+			index.forcePut(uuid, name);
 			
-			if (resolveConflictsAsync) {
-				runTaskAsync(task);
-			} else {
-				task.run();
+		} else if (!previousAssociatedUUID.equals(uuid)) {
+			logger.info("Resolving UUID conflict on name " + name + ": " + uuid + " vs " + previousAssociatedUUID);
+			index.removeName(name);
+			conflictingUUIDs.add(uuid);
+			conflictingUUIDs.add(previousAssociatedUUID);
+			needSave = true;
+		}
+	}
+	
+	private static <T> T readIndex(Function<UUIDNameIndex, T> lookup) {
+		long stamp = indexLock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T result = lookup.apply(index);
+				if (indexLock.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException e) {
+				// Inconsistent state seen during a change, read again below
 			}
 		}
+		
+		stamp = indexLock.readLock();
+		try {
+			return lookup.apply(index);
+		} finally {
+			indexLock.unlockRead(stamp);
+		}
 	}
 	
-	private static void updateAssociation(UUID uuid) {
-		updateAssociation(uuid, 1);
+	private static int minLastSeen(long maxAge) {
+		if (maxAge < 0) {
+			return Integer.MIN_VALUE;
+		}
+		return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - maxAge);
 	}
-
-	private static void updateAssociation(UUID uuid, int attemptNumber) {
+	
+	private static int currentMinute() {
+		return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Rebuilds the sorted names used by prefix searches. The sort runs without holding the index lock.
+	 */
+	private static synchronized void sortNames() {
+		UUIDNameIndex.PrefixIndexBuilder builder;
+		long stamp = indexLock.readLock();
 		try {
-			String name = UUIDFetcher.fetchName(uuid);
-			logger.info("Fetched online name for UUID " + uuid + ": " + name);
-			registerAssociation(uuid, name, true, true); // Resolve new eventual conflicts async
-			
-		} catch (ProfileNotFoundException e) {
-			logger.log(Level.WARNING, "Found invalid UUID: " + uuid);
-			
-		} catch (APILimitException e) {
-			logger.log(Level.WARNING, "Failed to resolve name for UUID " + uuid + ", API limit exceeded");
-			runTaskLaterAsync(() -> {
-				updateAssociation(uuid, attemptNumber + 1);
-			}, 60); // Wait at least a minute for API limits
-			
-		} catch (Throwable t) {
-			logger.log(Level.WARNING, "Failed to resolve name for UUID " + uuid + ", retrying later (attempt #" + attemptNumber + ")", t);
-			runTaskLaterAsync(() -> {
-				updateAssociation(uuid, attemptNumber + 1);
-			}, Math.min(attemptNumber * 5, 60)); // Wait 5, 10, 15, ... up to 60 seconds for each retry
+			if (index.getUnsortedCount() == 0) {
+				return;
+			}
+			builder = index.newPrefixIndexBuilder();
+		} finally {
+			indexLock.unlockRead(stamp);
+		}
+		
+		NamePrefixIndex prefixIndex = builder.build();
+		
+		stamp = indexLock.writeLock();
+		try {
+			index.setPrefixIndex(prefixIndex);
+		} finally {
+			indexLock.unlockWrite(stamp);
+		}
+	}
+	
+	private static void journalAssociation(UUID uuid, String name) {
+		if (journal != null) {
+			try {
+				journal.appendAssociation(uuid, name);
+			} catch (IOException ex) {
+				logger.log(Level.SEVERE, "Couldn't append to the UUID registry journal", ex);
+				needSave = true;
+			}
+		}
+	}
+	
+	private static void shareAssociation(UUID uuid, String name) {
+		if (sharedStorage != null) {
+			sharedStorage.enqueue(uuid, name);
 		}
 	}
 	
@@ -220,63 +640,214 @@ public class UUIDRegistry implements Listener {
 		if (saveFile != null) {
 			throw new IllegalArgumentException("Already initialized");
 		}
-		saveFile = new File(BungeeCommonsPlugin.instance.getDataFolder(), "uuid-registry.csv");
-		uuidToNames = HashBiMap.create();
+		File dataFolder = BungeeCommonsPlugin.instance.getDataFolder();
+		saveFile = new File(dataFolder, "uuid-registry.dat");
+		File legacySaveFile = new File(dataFolder, "uuid-registry.csv");
+		coldFile = new File(dataFolder, "uuid-registry.cold");
+		RegistryJournal loadingJournal = new RegistryJournal(new File(dataFolder, "uuid-registry.journal"));
 		logger = BungeeCommonsPlugin.instance.getLogger();
 		
-		synchronized (saveFile) {
-			if (!saveFile.exists()) {
-				saveFile.createNewFile();
+		// Its records are used only if the snapshot contains them, in case the snapshot was written after the cold index
+		ColdRegistryIndex coldIndex = null;
+		if (saveFile.exists() && coldFile.exists()) {
+			try {
+				coldIndex = ColdRegistryIndex.open(coldFile);
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Couldn't open the UUID registry cold index, all the entries will be loaded in memory", ex);
 			}
-
-			try (final BufferedReader reader = new BufferedReader(new FileReader(saveFile))) {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					final String[] values = line.split(",");
-					if (values.length != 2) {
-						logger.warning("Found bad line in the UUID registry save file: " + line);
-						continue;
-					}
-					final UUID uuid = UUID.fromString(values[0]);
-					final String name = values[1];
-					registerAssociation(uuid, name, false, false);
+		}
+		index = new UUIDNameIndex(coldIndex, false);
+		// The cold index was just loaded, without one the first demotion runs in the first periodic task (not in init)
+		nextDemotion = System.currentTimeMillis() + (coldIndex != null ? DEMOTION_INTERVAL : 0);
+		repairQueue = new RegistryRepairQueue(logger, UUIDRegistry::registerRepairedAssociation);
+		
+		List<UUID> conflictingUUIDs = new ArrayList<>();
+		
+		synchronized (saveFile) {
+			long stamp = indexLock.writeLock();
+			try {
+				if (saveFile.exists()) {
+					RegistrySnapshot.read(saveFile, (mostSigBits, leastSigBits, lastSeen, name) -> {
+						UUID uuid = new UUID(mostSigBits, leastSigBits);
+						if (index.restoreColdRecord(uuid, lastSeen, name)) {
+							return;
+						}
+						loadAssociation(uuid, name, conflictingUUIDs);
+						if (lastSeen != 0) {
+							index.setLastSeen(uuid, lastSeen);
+						}
+					});
+				} else if (legacySaveFile.exists()) {
+					logger.info("Importing the UUID registry from " + legacySaveFile.getName());
+					loadLegacySaveFile(legacySaveFile, conflictingUUIDs);
+					needSave = true;
 				}
+				
+				// Changes made after the snapshot was written, already validated when they were journaled
+				loadingJournal.replay((uuid, name) -> {
+					index.forcePut(uuid, name);
+				}, logger);
+			} finally {
+				indexLock.unlockWrite(stamp);
 			}
 		}
 		
+		for (UUID uuid : conflictingUUIDs) {
+			if (!containsUUID(uuid)) {
+				repairQueue.add(uuid, 0);
+			}
+		}
+		
+		sortNames();
+		loadingJournal.open();
+		journal = loadingJournal;
+		save(false);
+		
+		if (legacySaveFile.exists() && saveFile.exists()) {
+			// Kept as a backup, it's not read anymore
+			legacySaveFile.renameTo(new File(dataFolder, legacySaveFile.getName() + ".imported"));
+		}
+		
 		ProxyServer.getInstance().getPluginManager().registerListener(BungeeCommonsPlugin.instance, new UUIDRegistry());
 		ProxyServer.getInstance().getScheduler().schedule(BungeeCommonsPlugin.instance, () -> {
-			if (needSave) {
+			if (journal.getEntries() >= JOURNAL_COMPACTION_THRESHOLD || needSave || System.currentTimeMillis() >= nextDemotion) {
 				save();
 			}
+			sortNames();
+			
+			if (repairQueue.size() > 0) {
+				logger.info("UUID registry repairs: " + repairQueue.size() + " pending (peak " + repairQueue.getPeakSize() + "), "
+						+ repairQueue.getRepairedCount() + " repaired, " + repairQueue.getFailedAttemptsCount() + " failed attempts, "
+						+ repairQueue.getDroppedCount() + " dropped");
+			}
 		}, 5, 5, TimeUnit.MINUTES);
+		ProxyServer.getInstance().getScheduler().schedule(BungeeCommonsPlugin.instance, () -> {
+			repairQueue.drain();
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+	
+	private static void loadLegacySaveFile(File legacySaveFile, List<UUID> conflictingUUIDs) throws IOException {
+		try (final BufferedReader reader = new BufferedReader(new FileReader(legacySaveFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] values = line.split(",");
+				if (values.length != 2) {
+					logger.warning("Found bad line in the UUID registry save file: " + line);
+					continue;
+				}
+				loadAssociation(UUID.fromString(values[0]), values[1], conflictingUUIDs);
+			}
+		}
 	}
 
+	/**
+	 * Writes to the shared storage the associations still pending, called on shutdown after the last save.
+	 */
+	protected static void closeSharedStorage() {
+		if (sharedStorage != null) {
+			sharedStorage.close();
+		}
+	}
+	
+	/**
+	 * Compacts the journal into a new snapshot, if there is anything to compact.
+	 * Periodically, the inactive entries are also moved from memory to the cold index.
+	 */
 	protected static void save() {
-		Map<UUID, CIString> uuidToNamesCopy;
+		save(true);
+	}
+	
+	private static void save(boolean allowDemotion) {
+		UUIDNameIndex indexCopy;
+		boolean demote;
 		
-		synchronized (uuidToNames) {
-			uuidToNamesCopy = new HashMap<>(uuidToNames);
-		}
+		applyPendingLogins(); // Not to lose them when saving on shutdown
 		
 		try {
 			synchronized (saveFile) {
-				if (!saveFile.exists()) {
-					saveFile.createNewFile();
-				}
-	
-				try (final BufferedWriter writer = new BufferedWriter(new FileWriter(saveFile))) {
-					for (Entry<UUID, CIString> entry : uuidToNamesCopy.entrySet()) {
-						UUID uuid = entry.getKey();
-						CIString ciName = entry.getValue();
-						writer.append(uuid.toString() + "," + ciName.toString());
-						writer.newLine();
+				synchronized (writeLock) {
+					demote = allowDemotion && System.currentTimeMillis() >= nextDemotion;
+					if (journal.getEntries() == 0 && !needSave && !lastSeenChanged && !demote) {
+						return;
 					}
+					
+					// Changes made from now on go to the new journal, the snapshot already contains the rotated one
+					journal.rotate();
+					indexCopy = index.copy(); // Only array copies, faster than writing the file while blocking changes
+					if (demote) {
+						index.startTracking(); // Replayed on the index built from the copy
+					}
+					needSave = false;
+					lastSeenChanged = false;
+				}
+				
+				File tempFile = new File(saveFile.getPath() + ".tmp");
+				RegistrySnapshot.write(tempFile, indexCopy);
+				replaceFile(tempFile, saveFile);
+				journal.deleteRotated();
+				
+				if (demote) {
+					nextDemotion = System.currentTimeMillis() + DEMOTION_INTERVAL;
+					demoteInactiveEntries(indexCopy);
 				}
-				needSave = false;
-			}				
+			}
 		} catch (IOException ex) {
 			logger.log(Level.SEVERE, "Couldn't save UUID registry to file", ex);
+			needSave = true;
+		} finally {
+			synchronized (writeLock) {
+				index.stopTracking(); // If the demotion didn't complete
+			}
+		}
+	}
+	
+	/**
+	 * Writes the cold index from the same copy of the snapshot, then replaces the index with one that keeps
+	 * in memory only the other entries and the ones changed since the copy.
+	 */
+	private static void demoteInactiveEntries(UUIDNameIndex indexCopy) throws IOException {
+		File tempFile = new File(coldFile.getPath() + ".tmp");
+		ColdRegistryIndex.write(tempFile, indexCopy, minLastSeen(COLD_AFTER));
+		// The current cold index keeps reading the replaced file until it's garbage collected
+		replaceFile(tempFile, coldFile);
+		installColdIndex(indexCopy, ColdRegistryIndex.open(coldFile));
+	}
+	
+	/**
+	 * The new index and its prefix index are built from the copy without holding the locks,
+	 * then only the changes made since the copy are applied while blocking the lookups.
+	 * Synchronized with sortNames(), the prefix index of the replaced index would not match the new one.
+	 */
+	private static synchronized void installColdIndex(UUIDNameIndex indexCopy, ColdRegistryIndex coldIndex) {
+		UUIDNameIndex newIndex = indexCopy.withColdIndex(coldIndex);
+		newIndex.setPrefixIndex(newIndex.newPrefixIndexBuilder().build());
+		
+		int hotSize;
+		synchronized (writeLock) {
+			long stamp = indexLock.writeLock();
+			try {
+				index.replayTrackedChanges(newIndex);
+				index = newIndex;
+				hotSize = index.size() - index.getColdCount();
+			} finally {
+				indexLock.unlockWrite(stamp);
+			}
+		}
+		
+		logger.info("UUID registry: " + hotSize + " entries in memory, " + coldIndex.size() + " inactive entries in the cold index");
+	}
+	
+	/**
+	 * Atomically replaces the file with one already forced to the disk, then forces the directory too,
+	 * so that the rename is not lost on a crash after the files that it makes obsolete are deleted.
+	 */
+	private static void replaceFile(File source, File target) throws IOException {
+		Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		try (FileChannel directory = FileChannel.open(target.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException ex) {
+			// Directories can't be opened on some platforms, where renames are already durable
 		}
 	}
 	
@@ -284,8 +855,100 @@ public class UUIDRegistry implements Listener {
 		ProxyServer.getInstance().getScheduler().runAsync(BungeeCommonsPlugin.instance, task);
 	}
 	
-	private static void runTaskLaterAsync(Runnable task, long seconds) {
-		ProxyServer.getInstance().getScheduler().schedule(BungeeCommonsPlugin.instance, task, seconds, TimeUnit.SECONDS);
+	
+	@RequiredArgsConstructor
+	private static class BatchLoad {
+		
+		private final Queue<UUID> missingUUIDs;
+		private final int total;
+		private final BiConsumer<Integer, Integer> progressListener;
+		private final long deadline; // When the API limits are reached after it, the load gives up
+		private final Map<UUID, String> names = new ConcurrentHashMap<>();
+		private final AtomicInteger completed = new AtomicInteger();
+		
+		/**
+		 * Fetches the UUIDs one at a time on a thread of the fetcher. When the API limits are reached, the worker is
+		 * rescheduled instead of sleeping, so that it doesn't hold a thread that the interactive requests need.
+		 */
+		private void work(UUID retryUUID, CompletableFuture<Void> worker) {
+			try {
+				UUID uuid = retryUUID != null ? retryUUID : missingUUIDs.poll();
+				while (uuid != null) {
+					try {
+						String name = UUIDFetcher.fetchName(uuid, RequestPriority.BACKGROUND);
+						logger.info("Fetched online name for UUID " + uuid + ": " + name);
+						names.put(uuid, name);
+						
+					} catch (APILimitException e) {
+						long delay = Math.max(UUIDFetcher.getMillisUntilAPIAvailable(RequestPriority.BACKGROUND), 100);
+						if (System.currentTimeMillis() + delay > deadline) {
+							giveUp(uuid);
+							break;
+						}
+						
+						UUID retry = uuid;
+						BATCH_LOAD_SCHEDULER.schedule(() -> {
+							UUIDFetcher.BACKGROUND_EXECUTOR.execute(() -> work(retry, worker));
+						}, delay, TimeUnit.MILLISECONDS);
+						return;
+						
+					} catch (ProfileNotFoundException e) {
+						logger.log(Level.WARNING, "Found invalid UUID: " + uuid);
+						
+					} catch (Throwable t) {
+						logger.log(Level.WARNING, "Failed to resolve name for UUID " + uuid + ", retrying later (attempt #1)", t);
+						repairQueue.add(uuid, 1);
+					}
+					
+					int completedNow = completed.incrementAndGet();
+					if (progressListener != null) {
+						progressListener.accept(completedNow, total);
+					}
+					uuid = missingUUIDs.poll();
+				}
+				worker.complete(null);
+				
+			} catch (Throwable t) {
+				worker.completeExceptionally(t);
+			}
+		}
+		
+		/**
+		 * Leaves the UUID and the ones not fetched yet to the repair queue, which retries them in background.
+		 */
+		private void giveUp(UUID uuid) {
+			int remaining = 0;
+			for (; uuid != null; uuid = missingUUIDs.poll()) {
+				repairQueue.add(uuid, 1);
+				remaining++;
+			}
+			logger.warning("API limits reached for too long while fetching names, " + remaining + " UUIDs will be retried later");
+		}
+		
+	}
+	
+	@Getter
+	private static class RepairedAssociation extends Association {
+		
+		private final String displacedName; // Can be null
+		
+		private RepairedAssociation(UUID uuid, String name, String displacedName) {
+			super(uuid, name);
+			this.displacedName = displacedName;
+		}
+		
+	}
+	
+	@Getter
+	private static class Login extends Association {
+		
+		private final int minute;
+		
+		private Login(UUID uuid, String name, int minute) {
+			super(uuid, name);
+			this.minute = minute;
+		}
+		
 	}
 	
 }
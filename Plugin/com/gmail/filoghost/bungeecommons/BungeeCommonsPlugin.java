@@ -51,11 +51,15 @@ public class BungeeCommonsPlugin extends Plugin {
 			getProxy().stop();
 			return;
 		}
+		
+		wild.api.uuid.PackageAccess.UUIDFetcher_initPersistentCache();
 	}
 	
 	@Override
 	public void onDisable() {
 		wild.api.uuid.PackageAccess.UUIDRegistry_save();
+		wild.api.uuid.PackageAccess.UUIDRegistry_closeSharedStorage();
+		wild.api.uuid.PackageAccess.UUIDFetcher_saveCache();
 	}
 	
 }